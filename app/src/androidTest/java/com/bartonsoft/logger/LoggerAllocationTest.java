@@ -0,0 +1,66 @@
+package com.bartonsoft.logger;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.os.Debug;
+import android.support.test.runner.AndroidJUnit4;
+
+/**
+ * Checks that formatting a debug line allocates little beyond the line itself.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LoggerAllocationTest {
+	private static final int WARMUP = 1000;
+	private static final int LINES = 1000;
+	// the varargs array and the line's String, plus its char[] before Android 7.0
+	private static final int MAX_ALLOCS_PER_LINE = 4;
+
+	private Logger.CallerMode mode;
+
+	@Before
+	public void setUp() {
+		mode = Logger.getCallerMode();
+		// the stack walk allocates a frame per level; measure the formatting alone
+		Logger.setCallerMode(Logger.CallerMode.NEVER);
+	}
+
+	@After
+	public void tearDown() {
+		Logger.setCallerMode(mode);
+	}
+
+	@Test
+	public void debugLineAllocations() {
+		assertAllocations("value");
+	}
+
+	@Test
+	public void multiLineArgumentAllocations() {
+		assertAllocations("first\nsecond");
+	}
+
+	// the allocation counters are deprecated but still the only per-thread count
+	@SuppressWarnings("deprecation")
+	private static void assertAllocations(String arg) {
+		for (int i = 0; i < WARMUP; ++i) {
+			Logger.debug(LoggerAllocationTest.class, "warm up ", arg);
+		}
+		Debug.startAllocCounting();
+		try {
+			Debug.resetThreadAllocCount();
+			for (int i = 0; i < LINES; ++i) {
+				Logger.debug(LoggerAllocationTest.class, "measured ", arg);
+			}
+			final int allocs = Debug.getThreadAllocCount();
+			assertTrue(allocs + " allocations for " + LINES + " lines", allocs <= LINES * MAX_ALLOCS_PER_LINE);
+		}
+		finally {
+			Debug.stopAllocCounting();
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package com.bartonsoft.logger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.support.test.runner.AndroidJUnit4;
+
+/**
+ * Compares the cost of logging with and without a stack walk per call, for the
+ * static and tagged loggers under each caller mode.  Only reports the timings.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LoggerBenchmark {
+	private static final int ITERATIONS = 10000;
+
+	private static final TaggedLogger log = Logger.forClass(LoggerBenchmark.class);
+
+	@Test
+	public void callerModes() {
+		final int iterations = ITERATIONS;
+		final Logger.CallerMode mode = Logger.getCallerMode();
+		final StringBuilder sb = new StringBuilder("run: iterations = ");
+		sb.append(iterations);
+		try {
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; ++i) {
+				Thread.currentThread().getStackTrace();
+			}
+			sb.append(", getStackTrace = ");
+			sb.append((System.nanoTime() - start) / iterations);
+			sb.append("ns/call");
+
+			for (Logger.CallerMode m : Logger.CallerMode.values()) {
+				Logger.setCallerMode(m);
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; ++i) {
+					Logger.debug(LoggerBenchmark.class, "debug ", i);
+				}
+				final long debug = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; ++i) {
+					log.debug("tagged debug ", i);
+				}
+				final long taggedDebug = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; ++i) {
+					log.warn("tagged warn ", i);
+				}
+				final long taggedWarn = System.nanoTime() - start;
+
+				sb.append("; ");
+				sb.append(m.name());
+				sb.append(": debug = ");
+				sb.append(debug / iterations);
+				sb.append("ns/call, tagged debug = ");
+				sb.append(taggedDebug / iterations);
+				sb.append("ns/call, tagged warn = ");
+				sb.append(taggedWarn / iterations);
+				sb.append("ns/call");
+			}
+		}
+		finally {
+			Logger.setCallerMode(mode);
+		}
+		Logger.info(LoggerBenchmark.class, sb.toString());
+	}
+}
@@ -0,0 +1,138 @@
+package com.bartonsoft.logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+import android.os.Process;
+
+/**
+ * Background thread that drains a {@link LogRingBuffer} and hands each record back
+ * to {@link Logger} for formatting and output.
+ */
+final class AsyncLogWriter implements Runnable {
+	private static final long PARK_NANOS = 100000L;
+	private static final long IDLE_PARK_NANOS = 50000000L;
+
+	private final LogRingBuffer buffer;
+	private final OverflowPolicy policy;
+	private final Thread thread;
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile boolean running = true;
+	private volatile boolean idle;
+	private final ThreadLocal<LogEvent> scratch = new ThreadLocal<LogEvent>() {
+		@Override
+		protected LogEvent initialValue() {
+			return new LogEvent();
+		}
+	};
+
+	AsyncLogWriter(int capacity, OverflowPolicy policy) {
+		this.buffer = new LogRingBuffer(capacity);
+		this.policy = policy;
+		thread = new Thread(this, "Logger-async");
+		thread.setDaemon(true);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	boolean isWriterThread() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Queues a record, applying the overflow policy if the buffer is full.
+	 */
+	void enqueue(Level level, StackTraceElement caller, String tag, String threadName, int priority, long time, Object[] objs) {
+		while (!buffer.offer(level, caller, tag, threadName, priority, time, objs)) {
+			if (policy == OverflowPolicy.DROP) {
+				dropped.incrementAndGet();
+				Logger.recordDropped(level, caller, tag, objs);
+				return;
+			}
+			else if (policy == OverflowPolicy.DROP_OLDEST) {
+				final LogEvent oldest = scratch.get();
+				if (buffer.poll(oldest)) {
+					Logger.recordDropped(oldest.level, oldest.caller, oldest.tag, oldest.objs);
+					oldest.clear();
+					dropped.incrementAndGet();
+					completed.incrementAndGet();
+				}
+			}
+			else if (!thread.isAlive()) {
+				// writer was shut down underneath us
+				dropped.incrementAndGet();
+				Logger.recordDropped(level, caller, tag, objs);
+				return;
+			}
+			else {
+				LockSupport.unpark(thread);
+				LockSupport.parkNanos(PARK_NANOS);
+			}
+		}
+		if (idle) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * Waits until every record queued before this call has been written or dropped.
+	 */
+	void flush() {
+		if (isWriterThread()) {
+			return;
+		}
+		final long target = buffer.published();
+		while (completed.get() < target && thread.isAlive()) {
+			LockSupport.unpark(thread);
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+	}
+
+	/**
+	 * Flushes and stops the writer thread.
+	 */
+	void shutdown() {
+		flush();
+		running = false;
+		LockSupport.unpark(thread);
+		try {
+			thread.join(1000);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	long getDropped() {
+		return dropped.get();
+	}
+
+	@Override
+	public void run() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+		final LogEvent event = new LogEvent();
+		while (running || !buffer.isEmpty()) {
+			if (buffer.poll(event)) {
+				try {
+					Logger.write(event);
+				}
+				catch (Throwable t) {
+					// never let a bad toString() kill the writer
+				}
+				event.clear();
+				completed.incrementAndGet();
+			}
+			else {
+				idle = true;
+				if (buffer.isEmpty() && running) {
+					LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+				}
+				idle = false;
+			}
+		}
+	}
+}
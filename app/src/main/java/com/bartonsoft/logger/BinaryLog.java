@@ -0,0 +1,182 @@
+package com.bartonsoft.logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.os.Process;
+
+/**
+ * Compact binary log for high-frequency messages.  Instead of rendering text, each
+ * record stores a template id, a wall-clock timestamp, the thread id and the raw
+ * arguments, and is appended to a {@link MappedFileSink}.  Templates use "{}" for
+ * each argument and are kept in name.templates next to the segments, so
+ * {@link BinaryLogDecoder} can turn the files back into text offline.
+ */
+public final class BinaryLog {
+	static final byte RECORD = 1;
+	static final byte TYPE_NULL = 0;
+	static final byte TYPE_LONG = 1;
+	static final byte TYPE_DOUBLE = 2;
+	static final byte TYPE_STRING = 3;
+	static final byte TYPE_TRUE = 4;
+	static final byte TYPE_FALSE = 5;
+	static final String TEMPLATE_EXT = "templates";
+
+	private static final int MAX_RECORD = 4096;
+
+	private final MappedFileSink sink;
+	private final File templateFile;
+	private final ConcurrentHashMap<String, Integer> templates = new ConcurrentHashMap<String, Integer>();
+	private int nextId = 1;
+	private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(MAX_RECORD);
+		}
+	};
+
+	public BinaryLog(File dir, String name, int segmentSize, int numSegments) throws IOException {
+		sink = new MappedFileSink(dir, name, segmentSize, numSegments);
+		templateFile = new File(dir, name + "." + TEMPLATE_EXT);
+		if (templateFile.exists()) {
+			// keep ids stable so segments from earlier runs still decode
+			for (Map.Entry<Integer, String> entry : BinaryLogDecoder.readTemplates(templateFile).entrySet()) {
+				templates.put(entry.getValue(), entry.getKey());
+				nextId = Math.max(nextId, entry.getKey().intValue() + 1);
+			}
+		}
+	}
+
+	/**
+	 * Returns the id for the template, registering it on first use.
+	 */
+	public int template(String format) {
+		final Integer id = templates.get(format);
+		return id != null ? id.intValue() : register(format);
+	}
+
+	private synchronized int register(String format) {
+		Integer id = templates.get(format);
+		if (id == null) {
+			id = Integer.valueOf(nextId++);
+			try {
+				final Writer out = new OutputStreamWriter(new FileOutputStream(templateFile, true), "UTF-8");
+				try {
+					out.write(id.toString());
+					out.write('\t');
+					out.write(BinaryLogDecoder.escape(format));
+					out.write('\n');
+				}
+				finally {
+					out.close();
+				}
+			}
+			catch (IOException e) {
+				Logger.warn(BinaryLog.class, "register: unable to save template: ", e);
+			}
+			templates.put(format, id);
+		}
+		return id.intValue();
+	}
+
+	public void log(int template) {
+		sink.write(finish(begin(template, 0)));
+	}
+
+	public void log(int template, long a) {
+		final ByteBuffer bb = begin(template, 1);
+		putLong(bb, a);
+		sink.write(finish(bb));
+	}
+
+	public void log(int template, long a, long b) {
+		final ByteBuffer bb = begin(template, 2);
+		putLong(bb, a);
+		putLong(bb, b);
+		sink.write(finish(bb));
+	}
+
+	public void log(int template, long a, long b, long c) {
+		final ByteBuffer bb = begin(template, 3);
+		putLong(bb, a);
+		putLong(bb, b);
+		putLong(bb, c);
+		sink.write(finish(bb));
+	}
+
+	public void log(int template, Object... args) {
+		final int num = args == null ? 0 : Math.min(args.length, 255);
+		final ByteBuffer bb = begin(template, num);
+		for (int i = 0; i < num; ++i) {
+			final Object arg = args[i];
+			if (arg == null) {
+				bb.put(TYPE_NULL);
+			}
+			else if (arg instanceof Long || arg instanceof Integer || arg instanceof Short || arg instanceof Byte) {
+				putLong(bb, ((Number)arg).longValue());
+			}
+			else if (arg instanceof Double || arg instanceof Float) {
+				bb.put(TYPE_DOUBLE);
+				bb.putDouble(((Number)arg).doubleValue());
+			}
+			else if (arg instanceof Boolean) {
+				bb.put(((Boolean)arg).booleanValue() ? TYPE_TRUE : TYPE_FALSE);
+			}
+			else {
+				putString(bb, arg instanceof CharSequence ? (CharSequence)arg : arg.toString(), 9 * (num - i - 1));
+			}
+		}
+		sink.write(finish(bb));
+	}
+
+	public MappedFileSink getSink() {
+		return sink;
+	}
+
+	public File getTemplateFile() {
+		return templateFile;
+	}
+
+	private ByteBuffer begin(int template, int argc) {
+		final ByteBuffer bb = buffers.get();
+		bb.clear();
+		bb.put(RECORD);
+		bb.putInt(template);
+		bb.putLong(System.currentTimeMillis());
+		bb.putInt(Process.myTid());
+		bb.put((byte)argc);
+		return bb;
+	}
+
+	private static ByteBuffer finish(ByteBuffer bb) {
+		bb.flip();
+		return bb;
+	}
+
+	private static void putLong(ByteBuffer bb, long value) {
+		bb.put(TYPE_LONG);
+		bb.putLong(value);
+	}
+
+	/**
+	 * Writes the string, truncated so that reserve bytes remain for the arguments after it.
+	 */
+	private static void putString(ByteBuffer bb, CharSequence text, int reserve) {
+		final int limit = bb.limit() - reserve;
+		if (bb.position() + 5 > limit) {
+			bb.put(TYPE_NULL);
+			return;
+		}
+		bb.put(TYPE_STRING);
+		final int lenPos = bb.position();
+		bb.position(lenPos + 4);
+		MappedFileSink.encode(text, bb, limit);
+		bb.putInt(lenPos, bb.position() - lenPos - 4);
+	}
+}
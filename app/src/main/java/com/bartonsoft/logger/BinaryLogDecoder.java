@@ -0,0 +1,177 @@
+package com.bartonsoft.logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Host-side decoder for {@link BinaryLog} files; plain Java with no Android dependencies.
+ * <pre>
+ * java com.bartonsoft.logger.BinaryLogDecoder name.templates name-0.log name-1.log ...
+ * </pre>
+ */
+public final class BinaryLogDecoder {
+	private final Map<Integer, String> templates;
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+
+	public BinaryLogDecoder(Map<Integer, String> templates) {
+		this.templates = templates;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("usage: BinaryLogDecoder <name.templates> <segment file>...");
+			System.exit(1);
+		}
+		final BinaryLogDecoder decoder = new BinaryLogDecoder(readTemplates(new File(args[0])));
+		final List<File> files = new ArrayList<File>(args.length - 1);
+		for (int i = 1; i < args.length; ++i) {
+			files.add(new File(args[i]));
+		}
+		decoder.decode(files, System.out);
+	}
+
+	/**
+	 * Writes one line per record of the given segment files, oldest first.
+	 */
+	public void decode(List<File> files, PrintStream out) throws IOException {
+		final StringBuilder sb = new StringBuilder(256);
+		for (byte[] record : MappedFileSink.readRecords(files)) {
+			sb.setLength(0);
+			decode(record, sb);
+			out.println(sb);
+		}
+	}
+
+	/**
+	 * Appends the text of one record; records that are not binary are appended as UTF-8 text.
+	 */
+	public void decode(byte[] record, StringBuilder sb) throws IOException {
+		final ByteBuffer bb = ByteBuffer.wrap(record);
+		if (record.length < 18 || bb.get() != BinaryLog.RECORD) {
+			sb.append(new String(record, "UTF-8"));
+			return;
+		}
+		final int id = bb.getInt();
+		final long time = bb.getLong();
+		final int tid = bb.getInt();
+		final int argc = bb.get() & 0xff;
+
+		sb.append(dateFormat.format(new Date(time)));
+		sb.append(" [tid=");
+		sb.append(tid);
+		sb.append("] ");
+
+		final String template = templates.get(Integer.valueOf(id));
+		if (template == null) {
+			sb.append("<template ");
+			sb.append(id);
+			sb.append(">");
+		}
+		int pos = 0;
+		for (int i = 0; i < argc; ++i) {
+			if (template != null) {
+				final int next = template.indexOf("{}", pos);
+				if (next >= 0) {
+					sb.append(template, pos, next);
+					pos = next + 2;
+				}
+				else {
+					sb.append(' ');
+				}
+			}
+			else {
+				sb.append(' ');
+			}
+			appendArg(bb, sb);
+		}
+		if (template != null) {
+			sb.append(template, pos, template.length());
+		}
+	}
+
+	private static void appendArg(ByteBuffer bb, StringBuilder sb) throws IOException {
+		final byte type = bb.get();
+		switch (type) {
+			case BinaryLog.TYPE_NULL:
+				sb.append("null");
+				break;
+			case BinaryLog.TYPE_LONG:
+				sb.append(bb.getLong());
+				break;
+			case BinaryLog.TYPE_DOUBLE:
+				sb.append(bb.getDouble());
+				break;
+			case BinaryLog.TYPE_TRUE:
+				sb.append(true);
+				break;
+			case BinaryLog.TYPE_FALSE:
+				sb.append(false);
+				break;
+			case BinaryLog.TYPE_STRING:
+				final int len = bb.getInt();
+				sb.append(new String(bb.array(), bb.position(), len, "UTF-8"));
+				bb.position(bb.position() + len);
+				break;
+			default:
+				throw new IOException("unknown argument type " + type);
+		}
+	}
+
+	/**
+	 * Reads a template file written by {@link BinaryLog}.
+	 */
+	public static Map<Integer, String> readTemplates(File file) throws IOException {
+		final Map<Integer, String> templates = new HashMap<Integer, String>();
+		final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				final int tab = line.indexOf('\t');
+				if (tab > 0) {
+					try {
+						templates.put(Integer.valueOf(line.substring(0, tab)), unescape(line.substring(tab + 1)));
+					}
+					catch (NumberFormatException e) {
+						// skip a torn line
+					}
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+		return templates;
+	}
+
+	static String escape(String text) {
+		return text.replace("\\", "\\\\").replace("\n", "\\n");
+	}
+
+	static String unescape(String text) {
+		final StringBuilder sb = new StringBuilder(text.length());
+		final int len = text.length();
+		for (int i = 0; i < len; ++i) {
+			final char c = text.charAt(i);
+			if (c == '\\' && i + 1 < len) {
+				final char next = text.charAt(++i);
+				sb.append(next == 'n' ? '\n' : next);
+			}
+			else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,79 @@
+package com.bartonsoft.logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+
+/**
+ * Fixed-size ring of the most recent log calls at every level, kept unformatted in
+ * memory and overwritten oldest first.  Recording claims a slot with one atomic
+ * increment and publishes an immutable entry holding references into it; nothing
+ * is formatted until {@link #drain()}.  An entry that was overwritten, or whose
+ * writer has not published it yet, is skipped.
+ */
+final class FlightRecorder {
+	static final class Entry {
+		final long sequence;
+		final Level level;
+		final StackTraceElement caller;
+		final String tag;
+		final String threadName;
+		final long time;
+		final Object[] objs;
+
+		Entry(long sequence, Level level, StackTraceElement caller, String tag, String threadName, long time,
+				Object[] objs) {
+			this.sequence = sequence;
+			this.level = level;
+			this.caller = caller;
+			this.tag = tag;
+			this.threadName = threadName;
+			this.time = time;
+			this.objs = objs;
+		}
+	}
+
+	private final AtomicReferenceArray<Entry> slots;
+	private final int mask;
+	private final AtomicLong next = new AtomicLong();
+	private long drained;
+
+	FlightRecorder(int capacity) {
+		int size = 2;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		slots = new AtomicReferenceArray<Entry>(size);
+		mask = size - 1;
+	}
+
+	int capacity() {
+		return slots.length();
+	}
+
+	void record(Level level, StackTraceElement caller, String tag, Object[] objs) {
+		final long pos = next.getAndIncrement();
+		// writers that wrap onto the same slot replace each other's entry whole
+		slots.set((int)pos & mask, new Entry(pos, level, caller, tag, Thread.currentThread().getName(),
+			System.currentTimeMillis(), objs));
+	}
+
+	/**
+	 * Returns the entries recorded since the last drain, oldest first.
+	 */
+	synchronized List<Entry> drain() {
+		final long end = next.get();
+		final long start = Math.max(drained, end - slots.length());
+		drained = end;
+		final List<Entry> entries = new ArrayList<Entry>((int)(end - start));
+		for (long pos = start; pos < end; ++pos) {
+			final Entry e = slots.get((int)pos & mask);
+			if (e != null && e.sequence == pos) {
+				entries.add(e);
+			}
+		}
+		return entries;
+	}
+}
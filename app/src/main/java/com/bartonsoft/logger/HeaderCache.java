@@ -0,0 +1,82 @@
+package com.bartonsoft.logger;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import android.os.Process;
+
+/**
+ * The parts of the line header that rarely change.  The date and time up to the
+ * second is formatted once per second and shared by all threads, so a timestamp
+ * costs a string append and three digits.  Each thread's name and priority are
+ * looked up at most once per {@link #REFRESH_MILLIS}.
+ */
+final class HeaderCache {
+	static final long REFRESH_MILLIS = 1000L;
+
+	private static final class Second {
+		final long second;
+		final String text;
+
+		Second(long second, String text) {
+			this.second = second;
+			this.text = text;
+		}
+	}
+
+	static final class ThreadInfo {
+		String name;
+		int priority;
+		long refreshed;
+	}
+
+	private static final SimpleDateFormat secondFormat = new SimpleDateFormat("MM-dd HH:mm:ss.", Locale.US);
+	private static volatile Second cachedSecond = new Second(Long.MIN_VALUE, "");
+	private static final ThreadLocal<ThreadInfo> threadInfo = new ThreadLocal<ThreadInfo>() {
+		@Override
+		protected ThreadInfo initialValue() {
+			return new ThreadInfo();
+		}
+	};
+
+	private HeaderCache() {
+	}
+
+	/**
+	 * Appends the time as "MM-dd HH:mm:ss.SSS" in the default time zone.
+	 */
+	static void appendTime(StringBuilder sb, long time) {
+		final long second = time / 1000;
+		Second cached = cachedSecond;
+		if (cached.second != second) {
+			synchronized (secondFormat) {
+				cached = new Second(second, secondFormat.format(new Date(second * 1000)));
+			}
+			cachedSecond = cached;
+		}
+		sb.append(cached.text);
+		final int millis = (int)(time - second * 1000);
+		if (millis < 100) {
+			sb.append('0');
+		}
+		if (millis < 10) {
+			sb.append('0');
+		}
+		sb.append(millis);
+	}
+
+	/**
+	 * Returns the calling thread's name and priority, refreshed if older than
+	 * {@link #REFRESH_MILLIS} at the given time.
+	 */
+	static ThreadInfo currentThread(long now) {
+		final ThreadInfo info = threadInfo.get();
+		if (info.name == null || now - info.refreshed >= REFRESH_MILLIS || now < info.refreshed) {
+			info.name = Thread.currentThread().getName();
+			info.priority = Process.getThreadPriority(Process.myTid());
+			info.refreshed = now;
+		}
+		return info;
+	}
+}
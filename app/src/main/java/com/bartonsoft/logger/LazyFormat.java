@@ -0,0 +1,18 @@
+package com.bartonsoft.logger;
+
+/**
+ * An argument whose text is built only when the line is written, directly into the
+ * line buffer.  The logger skips it entirely when the level or tag is disabled.
+ * With async logging it is rendered on the writer thread, so whatever it refers to
+ * must not be changed after the call.
+ */
+public abstract class LazyFormat {
+	public abstract void appendTo(StringBuilder sb);
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		appendTo(sb);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,34 @@
+package com.bartonsoft.logger;
+
+import java.util.logging.Level;
+
+/**
+ * Unformatted log record, captured on the calling thread and formatted later.
+ */
+final class LogEvent {
+	Level level;
+	StackTraceElement caller;
+	String tag;
+	String threadName;
+	int priority;
+	long time;
+	Object[] objs;
+
+	void set(Level level, StackTraceElement caller, String tag, String threadName, int priority, long time, Object[] objs) {
+		this.level = level;
+		this.caller = caller;
+		this.tag = tag;
+		this.threadName = threadName;
+		this.priority = priority;
+		this.time = time;
+		this.objs = objs;
+	}
+
+	void copyFrom(LogEvent other) {
+		set(other.level, other.caller, other.tag, other.threadName, other.priority, other.time, other.objs);
+	}
+
+	void clear() {
+		set(null, null, null, null, 0, 0, null);
+	}
+}
@@ -0,0 +1,197 @@
+package com.bartonsoft.logger;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Counters of the logger's own cost, kept per level and per tag.  Recording is
+ * off until {@link Logger#setMetricsEnabled(boolean)} is called, so the only cost
+ * in the default configuration is one volatile read per line.
+ */
+public final class LogMetrics {
+	private static final int MAX_TAGS = 256;
+	private static final String OTHER_TAG = "<other>";
+
+	/**
+	 * One set of counters; the snapshot copies are not updated further.
+	 */
+	public static final class Counters {
+		private final AtomicLong lines = new AtomicLong();
+		private final AtomicLong chars = new AtomicLong();
+		private final AtomicLong formatNanos = new AtomicLong();
+		private final AtomicLong lockWaitNanos = new AtomicLong();
+		private final AtomicLong dropped = new AtomicLong();
+		private final AtomicLong splitLines = new AtomicLong();
+
+		/** Lines written. */
+		public long getLines() {
+			return lines.get();
+		}
+
+		/** Characters written, header included; equal to bytes for ASCII text. */
+		public long getChars() {
+			return chars.get();
+		}
+
+		/** Time spent building lines. */
+		public long getFormatNanos() {
+			return formatNanos.get();
+		}
+
+		/** Time spent waiting for the logger's monitor. */
+		public long getLockWaitNanos() {
+			return lockWaitNanos.get();
+		}
+
+		/** Lines dropped because the async buffer was full. */
+		public long getDropped() {
+			return dropped.get();
+		}
+
+		/** Physical lines written for messages split because they were too long. */
+		public long getSplitLines() {
+			return splitLines.get();
+		}
+
+		private Counters copy() {
+			final Counters c = new Counters();
+			c.lines.set(lines.get());
+			c.chars.set(chars.get());
+			c.formatNanos.set(formatNanos.get());
+			c.lockWaitNanos.set(lockWaitNanos.get());
+			c.dropped.set(dropped.get());
+			c.splitLines.set(splitLines.get());
+			return c;
+		}
+
+		private void appendTo(StringBuilder sb) {
+			sb.append("lines = ");
+			sb.append(lines.get());
+			sb.append(", chars = ");
+			sb.append(chars.get());
+			sb.append(", format = ");
+			sb.append(formatNanos.get() / 1000);
+			sb.append("us, lock wait = ");
+			sb.append(lockWaitNanos.get() / 1000);
+			sb.append("us, dropped = ");
+			sb.append(dropped.get());
+			sb.append(", split lines = ");
+			sb.append(splitLines.get());
+		}
+	}
+
+	private final ConcurrentHashMap<Level, Counters> levels = new ConcurrentHashMap<Level, Counters>();
+	private final ConcurrentHashMap<String, Counters> tags = new ConcurrentHashMap<String, Counters>();
+
+	LogMetrics() {
+	}
+
+	void recordLine(Level level, String tag, int chars, long formatNanos) {
+		Counters c = forLevel(level);
+		c.lines.incrementAndGet();
+		c.chars.addAndGet(chars);
+		c.formatNanos.addAndGet(formatNanos);
+		c = forTag(tag);
+		c.lines.incrementAndGet();
+		c.chars.addAndGet(chars);
+		c.formatNanos.addAndGet(formatNanos);
+	}
+
+	void recordLockWait(Level level, String tag, long nanos) {
+		forLevel(level).lockWaitNanos.addAndGet(nanos);
+		forTag(tag).lockWaitNanos.addAndGet(nanos);
+	}
+
+	void recordSplit(Level level, String tag, int lines) {
+		forLevel(level).splitLines.addAndGet(lines);
+		forTag(tag).splitLines.addAndGet(lines);
+	}
+
+	void recordDropped(Level level, String tag) {
+		forLevel(level).dropped.incrementAndGet();
+		forTag(tag).dropped.incrementAndGet();
+	}
+
+	/**
+	 * Returns a copy of the counters keyed by level name.
+	 */
+	public Map<String, Counters> snapshotByLevel() {
+		final Map<String, Counters> map = new TreeMap<String, Counters>();
+		for (Map.Entry<Level, Counters> entry : levels.entrySet()) {
+			map.put(entry.getKey().getName(), entry.getValue().copy());
+		}
+		return map;
+	}
+
+	/**
+	 * Returns a copy of the counters keyed by tag.
+	 */
+	public Map<String, Counters> snapshotByTag() {
+		final Map<String, Counters> map = new TreeMap<String, Counters>();
+		for (Map.Entry<String, Counters> entry : tags.entrySet()) {
+			map.put(entry.getKey(), entry.getValue().copy());
+		}
+		return map;
+	}
+
+	/**
+	 * Returns the current counters as text, one level or tag per line.
+	 */
+	public String dump() {
+		final StringBuilder sb = new StringBuilder("Logger metrics:");
+		for (Map.Entry<String, Counters> entry : snapshotByLevel().entrySet()) {
+			sb.append("\n  level ");
+			sb.append(entry.getKey());
+			sb.append(": ");
+			entry.getValue().appendTo(sb);
+		}
+		for (Map.Entry<String, Counters> entry : snapshotByTag().entrySet()) {
+			sb.append("\n  tag ");
+			sb.append(entry.getKey());
+			sb.append(": ");
+			entry.getValue().appendTo(sb);
+		}
+		return sb.toString();
+	}
+
+	public void reset() {
+		levels.clear();
+		tags.clear();
+	}
+
+	private Counters forLevel(Level level) {
+		Counters c = levels.get(level);
+		if (c == null) {
+			final Counters created = new Counters();
+			c = levels.putIfAbsent(level, created);
+			if (c == null) {
+				c = created;
+			}
+		}
+		return c;
+	}
+
+	private Counters forTag(String tag) {
+		if (tag == null) {
+			tag = OTHER_TAG;
+		}
+		Counters c = tags.get(tag);
+		if (c == null) {
+			if (tags.size() >= MAX_TAGS) {
+				tag = OTHER_TAG;
+				c = tags.get(tag);
+			}
+			if (c == null) {
+				final Counters created = new Counters();
+				c = tags.putIfAbsent(tag, created);
+				if (c == null) {
+					c = created;
+				}
+			}
+		}
+		return c;
+	}
+}
@@ -0,0 +1,111 @@
+package com.bartonsoft.logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+
+/**
+ * Bounded lock-free multi-producer queue of preallocated {@link LogEvent} slots.
+ * Each slot carries a sequence number: producers claim a position with a CAS on
+ * the tail and publish by advancing the slot sequence, so nothing is allocated
+ * per record and no producer ever blocks on a monitor.
+ */
+final class LogRingBuffer {
+	private final LogEvent[] slots;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong head = new AtomicLong();
+
+	LogRingBuffer(int capacity) {
+		int size = 2;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		slots = new LogEvent[size];
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; ++i) {
+			slots[i] = new LogEvent();
+			sequences.set(i, i);
+		}
+		mask = size - 1;
+	}
+
+	int capacity() {
+		return slots.length;
+	}
+
+	/**
+	 * Returns false if the buffer is full.
+	 */
+	boolean offer(Level level, StackTraceElement caller, String tag, String threadName, int priority, long time, Object[] objs) {
+		long pos = tail.get();
+		while (true) {
+			final int index = (int)pos & mask;
+			final long seq = sequences.get(index);
+			final long diff = seq - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					slots[index].set(level, caller, tag, threadName, priority, time, objs);
+					sequences.lazySet(index, pos + 1);
+					return true;
+				}
+				pos = tail.get();
+			}
+			else if (diff < 0) {
+				return false;
+			}
+			else {
+				pos = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Copies the oldest record into the given event and removes it, or returns false if empty.
+	 */
+	boolean poll(LogEvent into) {
+		long pos = head.get();
+		while (true) {
+			final int index = (int)pos & mask;
+			final long seq = sequences.get(index);
+			final long diff = seq - (pos + 1);
+			if (diff == 0) {
+				if (head.compareAndSet(pos, pos + 1)) {
+					final LogEvent slot = slots[index];
+					if (into != null) {
+						into.copyFrom(slot);
+					}
+					slot.clear();
+					sequences.lazySet(index, pos + mask + 1);
+					return true;
+				}
+				pos = head.get();
+			}
+			else if (diff < 0) {
+				return false;
+			}
+			else {
+				pos = head.get();
+			}
+		}
+	}
+
+	/**
+	 * Number of records ever claimed by producers.
+	 */
+	long published() {
+		return tail.get();
+	}
+
+	/**
+	 * Number of records ever removed, whether written or dropped.
+	 */
+	long consumed() {
+		return head.get();
+	}
+
+	boolean isEmpty() {
+		return head.get() >= tail.get();
+	}
+}
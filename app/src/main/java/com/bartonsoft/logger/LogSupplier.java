@@ -0,0 +1,8 @@
+package com.bartonsoft.logger;
+
+/**
+ * Builds a log message only once the level is known to be enabled.
+ */
+public interface LogSupplier {
+	Object get();
+}
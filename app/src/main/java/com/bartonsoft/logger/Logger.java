@@ -1,28 +1,50 @@
 package com.bartonsoft.logger;
 
-import java.util.Arrays;
-import java.util.Formatter;
-import java.util.HashMap;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
-import java.util.Locale;
+import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.regex.Pattern;
 
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.Process;
-import android.os.SystemClock;
 import android.util.Log;
 
 public class Logger {
 	private static final Object lock = new Object();
-	private static final StringBuilder headersb = new StringBuilder();
-	private static final Formatter header = new Formatter(headersb, Locale.US);
-	private static final Pattern lineEnd = Pattern.compile("\\n\\r*");
 	private static final Pattern nonPrintable = Pattern.compile("[^\\x20-\\x7f\n\r\t\\p{InMiscellaneousSymbolsAndPictographs}\\p{InEmoticons}]");
-	private static final HashMap<Class<?>, String> classNames = new HashMap<Class<?>, String>(256);
+	private static final ConcurrentHashMap<Class<?>, String> classNames = new ConcurrentHashMap<Class<?>, String>(256);
+	private static final int MAX_RETAINED_BUFFER = 16 * 1024;
+	// logcat truncates entries at about 4KB of UTF-8, leave room for the chunk marker
+	private static final int MAX_CHUNK = 3800;
+	private static final ThreadLocal<StringBuilder> lineBuffer = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(256);
+		}
+	};
+	private static final ThreadLocal<StringBuilder> chunkBuffer = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(MAX_CHUNK + 16);
+		}
+	};
+
+	private static final ThreadLocal<SpanStack> spans = new ThreadLocal<SpanStack>() {
+		@Override
+		protected SpanStack initialValue() {
+			return new SpanStack();
+		}
+	};
+	private static final SpanStats spanStats = new SpanStats();
 
 	private static final String TAG = "TESTLog";
 
@@ -30,67 +52,635 @@ public class Logger {
 	public static final boolean IS_WARNING_ENABLED = true;
 	public static final boolean IS_INFO_ENABLED = true;
 	public static final boolean IS_ERROR_ENABLED = true;
-	private static final boolean CHECK_LOCK = false;
+
+	/**
+	 * Controls which log calls walk the stack to find the calling file and line.
+	 */
+	public enum CallerMode {
+		ALWAYS,
+		WARN_AND_ABOVE,
+		NEVER
+	}
+
+	private static volatile AsyncLogWriter async;
+	private static volatile CallerMode callerMode = CallerMode.ALWAYS;
+	private static volatile MappedFileSink fileSink;
+	private static volatile BinaryLog binaryLog;
+	private static volatile FlightRecorder recorder;
+	private static Thread.UncaughtExceptionHandler crashHandler;
+	private static final RateLimiter errorLimiter = new RateLimiter(1.0, 10);
+	// how long suppressed errors wait for a summary when no line from their site gets through
+	private static final long SUMMARY_DELAY = 10000L;
+	private static final AtomicBoolean summaryScheduled = new AtomicBoolean();
+	private static Timer summaryTimer;
+	private static final LogMetrics metrics = new LogMetrics();
+	private static volatile int maxElements = 32;
+	private static volatile int maxStringLength = 256;
+	private static volatile int maxDepth = 3;
+	private static volatile boolean metricsEnabled;
+	private static final TraceCache traceCache = new TraceCache(256);
+
+	// runtime levels use the android.util.Log priorities; the IS_*_ENABLED constants remain compile-time switches
+	private static volatile int minPriority = Log.DEBUG;
+	private static volatile boolean hasTagLevels;
+	private static final ConcurrentHashMap<String, Integer> tagLevels = new ConcurrentHashMap<String, Integer>();
 
 	public static void debug(Object... objs) {
 		if (IS_DEBUG_ENABLED) {
-			log(Level.INFO, getCallerFrame(), objs);
+			if (isLoggable(Log.DEBUG, objs)) {
+				log(Level.INFO, callerMode == CallerMode.ALWAYS ? getCallerFrame() : null, null, objs);
+			}
+			else {
+				recordFiltered(Level.INFO, null, objs);
+			}
+		}
+	}
+
+	public static void debug(Class<?> cls, LogSupplier supplier) {
+		if (IS_DEBUG_ENABLED) {
+			if (isLoggable(Log.DEBUG, cls)) {
+				log(Level.INFO, callerMode == CallerMode.ALWAYS ? getCallerFrame() : null, null, cls, supplier.get());
+			}
+			else {
+				recordFiltered(Level.INFO, null, cls, supplier);
+			}
 		}
 	}
 
 	public static void info(Object... objs) {
 		if (IS_INFO_ENABLED) {
-			log(Level.INFO, getCallerFrame(), objs);
+			if (isLoggable(Log.INFO, objs)) {
+				log(Level.INFO, callerMode == CallerMode.ALWAYS ? getCallerFrame() : null, null, objs);
+			}
+			else {
+				recordFiltered(Level.INFO, null, objs);
+			}
+		}
+	}
+
+	public static void info(Class<?> cls, LogSupplier supplier) {
+		if (IS_INFO_ENABLED) {
+			if (isLoggable(Log.INFO, cls)) {
+				log(Level.INFO, callerMode == CallerMode.ALWAYS ? getCallerFrame() : null, null, cls, supplier.get());
+			}
+			else {
+				recordFiltered(Level.INFO, null, cls, supplier);
+			}
 		}
 	}
 
 	public static void warn(Object... objs) {
 		if (IS_WARNING_ENABLED) {
-			log(Level.FINE, getCallerFrame(), objs);
+			if (isLoggable(Log.WARN, objs)) {
+				log(Level.FINE, callerMode != CallerMode.NEVER ? getCallerFrame() : null, null, objs);
+			}
+			else {
+				recordFiltered(Level.FINE, null, objs);
+			}
+		}
+	}
+
+	public static void warn(Class<?> cls, LogSupplier supplier) {
+		if (IS_WARNING_ENABLED) {
+			if (isLoggable(Log.WARN, cls)) {
+				log(Level.FINE, callerMode != CallerMode.NEVER ? getCallerFrame() : null, null, cls, supplier.get());
+			}
+			else {
+				recordFiltered(Level.FINE, null, cls, supplier);
+			}
 		}
 	}
 
 	public static void error(Object... objs) {
-		final StackTraceElement frame = getCallerFrame();
-		log(Level.INFO, frame, objs);
-		logError(false, frame, objs);
+		final Object site = getErrorSite(null, objs);
+		if (site != null && !allowError(site, objs)) {
+			return;
+		}
+		final StackTraceElement frame = callerMode != CallerMode.NEVER ? getCallerFrame() : null;
+		if (site == null && !allowError(frame, objs)) {
+			return;
+		}
+		log(Level.INFO, frame, null, objs);
+		logError(false, frame, null, objs);
 	}
 
 	public static void error(Boolean x, Object... objs) {
-		final StackTraceElement frame = getCallerFrame();
-		log(Level.INFO, frame, objs);
-		logError(false, frame, objs);
+		final Object site = getErrorSite(null, objs);
+		if (site != null && !allowError(site, objs)) {
+			return;
+		}
+		final StackTraceElement frame = callerMode != CallerMode.NEVER ? getCallerFrame() : null;
+		if (site == null && !allowError(frame, objs)) {
+			return;
+		}
+		log(Level.INFO, frame, null, objs);
+		logError(false, frame, null, objs);
 	}
 
 	public static void fatal(Object... objs) {
-		final StackTraceElement frame = getCallerFrame();
-		log(Level.INFO, frame, objs);
-		logError(true, frame, objs);
+		final StackTraceElement frame = callerMode != CallerMode.NEVER ? getCallerFrame() : null;
+		log(Level.INFO, frame, null, objs);
+		logError(true, frame, null, objs);
+		dumpFlightRecorder();
+		flush();
 	}
 
-	private static void log(Level level, StackTraceElement caller, Object... objs) {
-		final int pid = Process.myPid();
-		final int tid = Process.myTid();
-		if (objs != null) {
-			synchronized (lock) {
-				final String header = getHeader(level, tid);
-				final String message = formatMessage(caller, objs);
-				if (message.length() > 2000) {
-					// split into lines to ensure it is all logged
-					boolean first = true;
-					for (String line : message.split("\n")) {
-						if (first) {
-							first = false;
-							line = header + line;
+	/**
+	 * Returns a logger that prefixes every line with the class's simple name instead
+	 * of looking up the calling file and line for debug and info lines.
+	 */
+	public static TaggedLogger forClass(Class<?> cls) {
+		return new TaggedLogger(getSimpleName(cls));
+	}
+
+	/**
+	 * Returns a logger that prefixes every line with the given tag instead of
+	 * looking up the calling file and line for debug and info lines.
+	 */
+	public static TaggedLogger forTag(String tag) {
+		return new TaggedLogger(tag);
+	}
+
+	/**
+	 * Sets which levels pay for a stack walk to report the calling file and line;
+	 * lines without a caller fall back to the class or tag passed in.
+	 */
+	public static void setCallerMode(CallerMode mode) {
+		callerMode = mode;
+	}
+
+	public static CallerMode getCallerMode() {
+		return callerMode;
+	}
+
+	public static boolean isDebugEnabled() {
+		return IS_DEBUG_ENABLED && minPriority <= Log.DEBUG;
+	}
+
+	public static boolean isDebugEnabled(Class<?> cls) {
+		return IS_DEBUG_ENABLED && isLoggable(Log.DEBUG, cls);
+	}
+
+	public static boolean isInfoEnabled(Class<?> cls) {
+		return IS_INFO_ENABLED && isLoggable(Log.INFO, cls);
+	}
+
+	public static boolean isWarnEnabled(Class<?> cls) {
+		return IS_WARNING_ENABLED && isLoggable(Log.WARN, cls);
+	}
+
+	/**
+	 * Returns true if a line at the given {@link Log} priority would be written for the class.
+	 */
+	public static boolean isLoggable(int priority, Class<?> cls) {
+		if (hasTagLevels && cls != null) {
+			return isLoggable(priority, getSimpleName(cls));
+		}
+		return priority >= minPriority;
+	}
+
+	/**
+	 * Returns true if a line at the given {@link Log} priority would be written for the tag.
+	 */
+	public static boolean isLoggable(int priority, String tag) {
+		if (hasTagLevels && tag != null) {
+			final Integer level = tagLevels.get(tag);
+			if (level != null) {
+				return priority >= level.intValue();
+			}
+		}
+		return priority >= minPriority;
+	}
+
+	private static boolean isLoggable(int priority, Object[] objs) {
+		if (hasTagLevels && objs != null && objs.length != 0 && objs[0] instanceof Class) {
+			return isLoggable(priority, getSimpleName((Class<?>)objs[0]));
+		}
+		return priority >= minPriority;
+	}
+
+	/**
+	 * Sets the lowest {@link Log} priority written for tags without their own level.
+	 */
+	public static void setLevel(int priority) {
+		minPriority = priority;
+	}
+
+	public static void setLevel(Class<?> cls, int priority) {
+		setLevel(getSimpleName(cls), priority);
+	}
+
+	/**
+	 * Sets the lowest {@link Log} priority written for a tag or class simple name.
+	 */
+	public static void setLevel(String tag, int priority) {
+		tagLevels.put(tag, Integer.valueOf(priority));
+		hasTagLevels = true;
+	}
+
+	public static void clearLevels() {
+		tagLevels.clear();
+		hasTagLevels = false;
+		minPriority = Log.DEBUG;
+	}
+
+	/**
+	 * Switches to asynchronous logging: callers only queue a record on a bounded
+	 * ring buffer and a background thread formats and writes it.  Arguments are
+	 * formatted later, so they should not be mutated after being logged.
+	 */
+	public static void startAsync(int capacity, OverflowPolicy policy) {
+		synchronized (lock) {
+			if (async == null) {
+				final AsyncLogWriter writer = new AsyncLogWriter(capacity, policy);
+				writer.start();
+				async = writer;
+			}
+		}
+	}
+
+	/**
+	 * Writes out anything still queued and returns to synchronous logging.
+	 */
+	public static void stopAsync() {
+		final AsyncLogWriter writer;
+		synchronized (lock) {
+			writer = async;
+			async = null;
+		}
+		if (writer != null) {
+			writer.shutdown();
+		}
+	}
+
+	/**
+	 * Logs the summaries of errors suppressed since their site's last line, then waits
+	 * until all queued records have been written.
+	 */
+	public static void flush() {
+		logErrorSummaries();
+		final AsyncLogWriter writer = async;
+		if (writer != null) {
+			writer.flush();
+		}
+	}
+
+	/**
+	 * Also writes every line to the given file sink, or stops doing so if null.
+	 */
+	public static void setFileSink(MappedFileSink sink) {
+		fileSink = sink;
+	}
+
+	public static MappedFileSink getFileSink() {
+		return fileSink;
+	}
+
+	/**
+	 * Installs a binary log that high-frequency callers record to instead of
+	 * formatting text, or removes it if null.
+	 */
+	public static void setBinaryLog(BinaryLog log) {
+		binaryLog = log;
+	}
+
+	public static BinaryLog getBinaryLog() {
+		return binaryLog;
+	}
+
+	/**
+	 * Sets the token bucket for {@link #error}: a burst of lines, then perSecond lines
+	 * per second, per tag or leading class, or per call site for lines with neither.
+	 * Fatal errors are never limited.
+	 */
+	public static void setErrorRateLimit(double perSecond, int burst) {
+		errorLimiter.setRate(perSecond, burst);
+	}
+
+	/**
+	 * Returns the number of error lines suppressed as repeats or by the rate limit.
+	 */
+	public static long getSuppressedCount() {
+		return errorLimiter.getSuppressed();
+	}
+
+	/**
+	 * Sets how many distinct stack traces are remembered so that repeats are logged
+	 * as a short reference; 0 always prints traces in full.
+	 */
+	public static void setTraceCacheSize(int size) {
+		traceCache.setMaxSize(size);
+	}
+
+	/**
+	 * Turns recording of the logger's own volume and timing on or off.
+	 */
+	public static void setMetricsEnabled(boolean enabled) {
+		metricsEnabled = enabled;
+	}
+
+	public static LogMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Opens a span on the calling thread.  Spans nest, and each one must be closed by
+	 * {@link #endSpan()} on the same thread, normally in a finally block.
+	 */
+	public static void beginSpan(String name) {
+		spans.get().begin(name);
+	}
+
+	/**
+	 * Closes the innermost span of the calling thread, adds it to the totals for its
+	 * name and returns its duration in nanoseconds.
+	 */
+	public static long endSpan() {
+		final long nanos = spans.get().end(spanStats);
+		if (nanos < 0) {
+			warn(Logger.class, "endSpan: no open span");
+			return 0;
+		}
+		return nanos;
+	}
+
+	public static SpanStats getSpanStats() {
+		return spanStats;
+	}
+
+	/**
+	 * Starts keeping the last capacity log calls in memory at every level, whether or
+	 * not they are written, and installs a default uncaught exception handler that
+	 * writes them out before passing the exception on.  Arguments are kept by
+	 * reference and formatted only when dumped.
+	 */
+	public static void startFlightRecorder(int capacity) {
+		synchronized (lock) {
+			if (recorder == null) {
+				recorder = new FlightRecorder(capacity);
+				final Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+				crashHandler = new Thread.UncaughtExceptionHandler() {
+					@Override
+					public void uncaughtException(Thread thread, Throwable e) {
+						try {
+							log(Level.SEVERE, null, null, "uncaught exception in " + thread.getName() + ": ", e);
+							dumpFlightRecorder();
+						}
+						catch (Throwable t) {
+							// never hide the original crash
+						}
+						if (previous != null) {
+							previous.uncaughtException(thread, e);
 						}
-						logLine(level, line);
+					}
+				};
+				Thread.setDefaultUncaughtExceptionHandler(crashHandler);
+			}
+		}
+	}
+
+	public static void stopFlightRecorder() {
+		synchronized (lock) {
+			recorder = null;
+			// leave a handler installed after ours in place, it may chain to ours
+			if (crashHandler != null && Thread.getDefaultUncaughtExceptionHandler() == crashHandler) {
+				Thread.setDefaultUncaughtExceptionHandler(null);
+			}
+			crashHandler = null;
+		}
+	}
+
+	/**
+	 * Writes out the flight recorder entries recorded since the last dump with their
+	 * original times and threads.  Called by {@link #fatal} and on an uncaught exception.
+	 */
+	public static void dumpFlightRecorder() {
+		final FlightRecorder fr = recorder;
+		if (fr == null) {
+			return;
+		}
+		flush();
+		final List<FlightRecorder.Entry> entries = fr.drain();
+		// the arguments' toString() and suppliers run here, outside the lock
+		final List<StringBuilder> lines = new ArrayList<StringBuilder>(entries.size() + 2);
+		StringBuilder sb = new StringBuilder(64);
+		sb.append("flight recorder: last ");
+		sb.append(entries.size());
+		sb.append(" calls");
+		lines.add(sb);
+		for (FlightRecorder.Entry e : entries) {
+			sb = new StringBuilder(256);
+			sb.append("> ");
+			HeaderCache.appendTime(sb, e.time);
+			sb.append(' ');
+			sb.append(e.level.toString());
+			sb.append(" [");
+			sb.append(e.threadName);
+			sb.append("] ");
+			try {
+				formatMessage(sb, e.caller, e.tag, e.objs);
+			}
+			catch (Throwable t) {
+				sb.append("<unable to format: ");
+				sb.append(t);
+				sb.append('>');
+			}
+			lines.add(sb);
+		}
+		lines.add(new StringBuilder("flight recorder: end"));
+		synchronized (lock) {
+			for (StringBuilder line : lines) {
+				emit(Level.SEVERE, line);
+			}
+		}
+	}
+
+	static void recordFiltered(Level level, String tag, Object... objs) {
+		final FlightRecorder fr = recorder;
+		if (fr != null) {
+			fr.record(level, null, tag, objs);
+		}
+	}
+
+	/**
+	 * Returns the number of records dropped because the async buffer was full.
+	 */
+	public static long getDroppedCount() {
+		final AsyncLogWriter writer = async;
+		return writer == null ? 0 : writer.getDropped();
+	}
+
+	static void log(Level level, StackTraceElement caller, String tag, Object... objs) {
+		if (objs != null) {
+			final FlightRecorder fr = recorder;
+			// a SEVERE line repeats the INFO line error() and fatal() wrote just before it
+			if (fr != null && level != Level.SEVERE) {
+				fr.record(level, caller, tag, objs);
+			}
+			final long time = System.currentTimeMillis();
+			final HeaderCache.ThreadInfo thread = HeaderCache.currentThread(time);
+			final AsyncLogWriter writer = async;
+			if (writer != null && !writer.isWriterThread()) {
+				writer.enqueue(level, caller, tag, thread.name, thread.priority, time, objs);
+			}
+			else {
+				write(level, caller, tag, thread.name, thread.priority, time, objs);
+			}
+		}
+	}
+
+	static void write(LogEvent event) {
+		write(event.level, event.caller, event.tag, event.threadName, event.priority, event.time, event.objs);
+	}
+
+	private static void write(Level level, StackTraceElement caller, String tag, String threadName, int priority, long time,
+			Object[] objs) {
+		if (objs != null) {
+			final boolean measure = metricsEnabled;
+			final long start = measure ? System.nanoTime() : 0;
+			final StringBuilder sb = lineBuffer.get();
+			sb.setLength(0);
+			getHeader(sb, level, threadName, priority, time);
+			formatMessage(sb, caller, tag, objs);
+			final MappedFileSink sink = fileSink;
+			if (sink != null) {
+				sink.write(sb);
+			}
+			final int length = sb.length();
+			final String metricsTag = measure ? getMetricsTag(caller, tag, objs) : null;
+			if (measure) {
+				metrics.recordLine(level, metricsTag, length, System.nanoTime() - start);
+			}
+			if (isOversized(sb)) {
+				// write logcat-sized chunks in one go so other threads can't interleave
+				final long waitStart = measure ? System.nanoTime() : 0;
+				synchronized (lock) {
+					if (measure) {
+						metrics.recordLockWait(level, metricsTag, System.nanoTime() - waitStart);
+					}
+					final int chunks = writeChunks(level, sb);
+					if (measure) {
+						metrics.recordSplit(level, metricsTag, chunks);
 					}
 				}
-				else {
-					logLine(level, header + message);
-				}
 			}
+			else {
+				logLine(level, sb.toString());
+			}
+			if (sb.capacity() > MAX_RETAINED_BUFFER) {
+				lineBuffer.remove();
+			}
+		}
+	}
+
+	/**
+	 * Writes a line built outside of {@link #write} to the file sink and logcat.
+	 */
+	private static void emit(Level level, StringBuilder sb) {
+		final MappedFileSink sink = fileSink;
+		if (sink != null) {
+			sink.write(sb);
+		}
+		if (isOversized(sb)) {
+			synchronized (lock) {
+				writeChunks(level, sb);
+			}
+		}
+		else {
+			logLine(level, sb.toString());
+		}
+	}
+
+	/**
+	 * Returns whether a message is over MAX_CHUNK bytes of UTF-8 and has to be chunked.
+	 */
+	private static boolean isOversized(StringBuilder sb) {
+		// a char is at most 3 bytes, so short messages need no counting
+		return sb.length() > MAX_CHUNK / 3 && nextChunk(sb, 0) < sb.length();
+	}
+
+	/**
+	 * Writes an oversized message as numbered chunks of at most MAX_CHUNK UTF-8 bytes,
+	 * breaking at a newline in the second half of a chunk where there is one.
+	 * Returns the number of chunks written.
+	 */
+	private static int writeChunks(Level level, StringBuilder sb) {
+		final int length = sb.length();
+		int num = 0;
+		for (int pos = 0; pos < length; pos = nextChunk(sb, pos)) {
+			++num;
+		}
+		final StringBuilder chunk = chunkBuffer.get();
+		int index = 0;
+		int pos = 0;
+		while (pos < length) {
+			final int next = nextChunk(sb, pos);
+			int end = next;
+			if (end < length && end > pos && sb.charAt(end - 1) == '\n') {
+				--end;
+			}
+			chunk.setLength(0);
+			chunk.append('[');
+			chunk.append(++index);
+			chunk.append('/');
+			chunk.append(num);
+			chunk.append(index < num ? "+] " : "] ");
+			chunk.append(sb, pos, end);
+			logLine(level, chunk.toString());
+			pos = next;
 		}
+		return num;
+	}
+
+	/**
+	 * Returns the start of the chunk after the one starting at pos.
+	 */
+	private static int nextChunk(StringBuilder sb, int pos) {
+		final int length = sb.length();
+		int bytes = 0;
+		int newline = -1;
+		int i = pos;
+		while (i < length) {
+			final char c = sb.charAt(i);
+			final int size;
+			if (c < 0x80) {
+				size = 1;
+			}
+			else if (c < 0x800) {
+				size = 2;
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(sb.charAt(i + 1))) {
+				size = 4;
+			}
+			else {
+				size = 3;
+			}
+			if (bytes + size > MAX_CHUNK) {
+				return newline >= 0 ? newline : i;
+			}
+			bytes += size;
+			i += size == 4 ? 2 : 1;
+			if (c == '\n' && bytes > MAX_CHUNK / 2) {
+				newline = i;
+			}
+		}
+		return length;
+	}
+
+	static void recordDropped(Level level, StackTraceElement caller, String tag, Object[] objs) {
+		if (metricsEnabled) {
+			metrics.recordDropped(level, getMetricsTag(caller, tag, objs));
+		}
+	}
+
+	private static String getMetricsTag(StackTraceElement caller, String tag, Object[] objs) {
+		if (tag != null) {
+			return tag;
+		}
+		if (objs != null && objs.length != 0 && objs[0] instanceof Class) {
+			return getSimpleName((Class<?>)objs[0]);
+		}
+		return caller != null ? caller.getFileName() : null;
 	}
 
 	private static void logLine(Level level, String line) {
@@ -139,79 +729,164 @@ public class Logger {
 		buf.append("\n");
 	}
 
-	private static void postErrorToAcra(boolean fatal, final StackTraceElement caller, final Object... objs) {
-		log(fatal ? Level.SEVERE : Level.SEVERE, caller, objs);
+	private static void postErrorToAcra(boolean fatal, final StackTraceElement caller, final String tag, final Object... objs) {
+		log(fatal ? Level.SEVERE : Level.SEVERE, caller, tag, objs);
 	}
 
-	private static void logError(boolean fatal, StackTraceElement caller, Object... objs) {
+	static void logError(boolean fatal, StackTraceElement caller, String tag, Object... objs) {
 		if (Logger.IS_ERROR_ENABLED) {
-			if (Logger.IS_DEBUG_ENABLED || fatal) {
-				postErrorToAcra(fatal, caller, objs);
+			// non-fatal errors were already rate limited per site by allowError()
+			postErrorToAcra(fatal, caller, tag, objs);
+		}
+	}
+
+	/**
+	 * The site of an error logged with a tag or leading class: the tag or class with
+	 * the message template, its first String argument, so that different errors
+	 * from one class are limited apart.
+	 */
+	private static final class ErrorSite {
+		final Object owner;
+		final String template;
+
+		ErrorSite(Object owner, String template) {
+			this.owner = owner;
+			this.template = template;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof ErrorSite)) {
+				return false;
 			}
-			else {
-				try {
-					long i = SystemClock.uptimeMillis();
-					if (i % 10 == 1) {
-						postErrorToAcra(false, caller, objs);
-					}
-				}
-				catch (Exception e) {
-					if (Logger.IS_DEBUG_ENABLED) {
-						Logger.debug(e);
-					}
+			final ErrorSite other = (ErrorSite)o;
+			return owner.equals(other.owner)
+				&& (template == null ? other.template == null : template.equals(other.template));
+		}
+
+		@Override
+		public int hashCode() {
+			return owner.hashCode() * 31 + (template != null ? template.hashCode() : 0);
+		}
+	}
+
+	/**
+	 * Returns the key an error is rate limited on without walking the stack, its tag or
+	 * leading class with its message template, or null if it has neither and the
+	 * calling frame has to be used.
+	 */
+	static Object getErrorSite(String tag, Object[] objs) {
+		final Object owner;
+		int first = 0;
+		if (tag != null) {
+			owner = tag;
+		}
+		else if (objs != null && objs.length != 0 && objs[0] instanceof Class) {
+			owner = objs[0];
+			first = 1;
+		}
+		else {
+			return null;
+		}
+		String template = null;
+		if (objs != null) {
+			for (int i = first; i < objs.length; ++i) {
+				if (objs[i] instanceof String) {
+					template = (String)objs[i];
+					break;
 				}
 			}
 		}
+		return new ErrorSite(owner, template);
 	}
 
-	private static String getHeader(Level level, int tid) {
-		if (headersb == null) {
-			return "";
+	/**
+	 * Applies the rate limit of the site, from {@link #getErrorSite} or the calling
+	 * frame, to an error, first logging a summary of anything suppressed there since
+	 * its last line.
+	 */
+	static boolean allowError(Object site, Object[] objs) {
+		final long summary = errorLimiter.check(site != null ? site : Logger.class, objs);
+		if (summary == RateLimiter.SUPPRESS) {
+			scheduleErrorSummaries();
+			return false;
+		}
+		if (summary != 0) {
+			logErrorSummary(site, summary);
 		}
-		headersb.setLength(0);
-		getHeader(headersb, level, tid);
-		return headersb.toString();
+		return true;
 	}
 
-	private static void getHeader(StringBuilder sb, Level level, int tid) {
-		final int pri = getPriority(tid);
+	private static void scheduleErrorSummaries() {
+		if (!summaryScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		final Timer timer;
+		synchronized (summaryScheduled) {
+			if (summaryTimer == null) {
+				summaryTimer = new Timer("Logger-summaries", true);
+			}
+			timer = summaryTimer;
+		}
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				summaryScheduled.set(false);
+				logErrorSummaries();
+			}
+		}, SUMMARY_DELAY);
+	}
+
+	private static void logErrorSummaries() {
+		for (Map.Entry<Object, Long> entry : errorLimiter.drain().entrySet()) {
+			logErrorSummary(entry.getKey(), entry.getValue());
+		}
+	}
+
+	private static void logErrorSummary(Object site, long summary) {
+		if (site instanceof ErrorSite) {
+			site = ((ErrorSite)site).owner;
+		}
+		final int repeated = (int)(summary >>> 32);
+		final int limited = (int)summary;
+		final String text = "previous error repeated " + repeated + " times, " + limited
+			+ " more suppressed by rate limit";
+		if (site instanceof StackTraceElement) {
+			log(Level.INFO, (StackTraceElement)site, null, text);
+		}
+		else if (site instanceof String) {
+			log(Level.INFO, null, (String)site, text);
+		}
+		else {
+			log(Level.INFO, null, null, site != null ? site : Logger.class, text);
+		}
+	}
+
+	private static void getHeader(StringBuilder sb, Level level, String threadName, int priority, long time) {
+		HeaderCache.appendTime(sb, time);
+		sb.append(' ');
 		sb.append(level.toString());
 		sb.append(" [");
-		sb.append(Thread.currentThread().getName());
+		sb.append(threadName);
 		sb.append(",pri=");
-		sb.append(pri);
+		sb.append(priority);
 		sb.append("] ");
 	}
 
-	private static int getPriority(final int tid) {
-		final int pri = Process.getThreadPriority(tid);
-		return pri;
-	}
-
-	private static String formatMessage(StackTraceElement caller, Object... objs) {
-		if (CHECK_LOCK && !Thread.holdsLock(lock)) {
-			throw new RuntimeException("Logger.formatMessage: not holding lock");
-		}
+	private static void formatMessage(StringBuilder sb, StackTraceElement caller, String tag, Object... objs) {
 		final int numObjs;
 		if (objs == null || (numObjs = objs.length) == 0) {
-			return "";
-		}
-
-		final StringBuilder sb = headersb;
-		if (sb == null) {
-			return "";
+			return;
 		}
-		sb.setLength(0);
 
 		String file = null;
+		int fileLen = 0;
 		if (caller != null) {
 			file = caller.getFileName();
 			if (file != null) {
 				final int pos = file.indexOf(".java");
-				if (pos > 0) {
-					file = file.substring(0, pos);
-				}
-				sb.append(file);
+				fileLen = pos > 0 ? pos : file.length();
+				sb.append(file, 0, fileLen);
 				final int line = caller.getLineNumber();
 				if (line >= 0) {
 					sb.append(':');
@@ -220,6 +895,12 @@ public class Logger {
 				sb.append(": ");
 			}
 		}
+		if (file == null && tag != null) {
+			file = tag;
+			fileLen = tag.length();
+			sb.append(tag);
+			sb.append(": ");
+		}
 
 		boolean delim = false;
 		for (int j = 0; j < numObjs; ++j) {
@@ -231,32 +912,13 @@ public class Logger {
 				delim = true;
 			}
 			if (o instanceof Throwable) {
-				Throwable e = (Throwable)o;
-				do {
-					String emsg = e.getMessage();
-					sb.append(e.getClass().getName());
-					if (emsg != null) {
-						sb.append(": ");
-						sb.append(emsg);
-					}
-					sb.append("\n");
-					for (StackTraceElement ste : e.getStackTrace()) {
-						sb.append("  ");
-						sb.append(ste.toString());
-						sb.append("\n");
-					}
-					e = e.getCause();
-					if (e != null) {
-						sb.append("caused by:\n");
-					}
-				} while (e != null);
-
+				appendThrowable(sb, (Throwable)o);
 			}
 			else if (o instanceof Class) {
 				// ignore initial class name if same as filename
 				final Class<?> cls = (Class<?>)o;
 				final String name = getSimpleName(cls);
-				if (j != 0 || !name.equals(file)) {
+				if (j != 0 || file == null || name.length() != fileLen || !file.startsWith(name)) {
 					sb.append(name);
 					sb.append(": ");
 				}
@@ -267,19 +929,104 @@ public class Logger {
 				sb.append("<null>");
 
 			}
+			else if (o instanceof Integer) {
+				sb.append(((Integer)o).intValue());
+			}
+			else if (o instanceof Long) {
+				sb.append(((Long)o).longValue());
+			}
+			else if (o instanceof Boolean) {
+				sb.append(((Boolean)o).booleanValue());
+			}
+			else if (o instanceof CharSequence) {
+				appendLines(sb, (CharSequence)o);
+			}
+			else if (o instanceof LogSupplier) {
+				// a call recorded by the flight recorder while its level was off
+				appendLines(sb, String.valueOf(((LogSupplier)o).get()));
+			}
+			else if (o instanceof LazyFormat) {
+				final int start = sb.length();
+				((LazyFormat)o).appendTo(sb);
+				trimNewlines(sb, start);
+			}
 			else {
-				final String[] lines = lineEnd.split(o.toString());
-				final int num = lines.length;
-				for (int i = 0; i < num; ++i) {
-					if (i > 0) {
-						sb.append('\n');
-					}
-					sb.append(lines[i]);
+				appendLines(sb, o.toString());
+			}
+		}
+	}
+
+	/**
+	 * Appends the exception and its causes.  With the trace cache enabled, a trace
+	 * already printed is replaced by its fingerprint and occurrence count.
+	 */
+	private static void appendThrowable(StringBuilder sb, Throwable e) {
+		final boolean dedup = traceCache.isEnabled();
+		final long fingerprint = dedup ? TraceCache.fingerprint(e) : 0;
+		final int count = dedup ? traceCache.record(fingerprint) : 1;
+		do {
+			String emsg = e.getMessage();
+			sb.append(e.getClass().getName());
+			if (emsg != null) {
+				sb.append(": ");
+				sb.append(emsg);
+			}
+			sb.append("\n");
+			if (count == 1) {
+				for (StackTraceElement ste : e.getStackTrace()) {
+					sb.append("  ");
+					sb.append(ste.toString());
+					sb.append("\n");
 				}
 			}
+			e = e.getCause();
+			if (e != null) {
+				sb.append("caused by:\n");
+			}
+		} while (e != null);
+		if (dedup) {
+			sb.append("  [trace ");
+			appendHex(sb, fingerprint);
+			if (count > 1) {
+				sb.append(" seen ");
+				sb.append(count);
+				sb.append(" times, stack printed on first occurrence");
+			}
+			sb.append("]\n");
 		}
+	}
 
-		return sb.toString();
+	private static void appendHex(StringBuilder sb, long value) {
+		for (int shift = 60; shift >= 0; shift -= 4) {
+			sb.append(Character.forDigit((int)(value >>> shift) & 0xf, 16));
+		}
+	}
+
+	/**
+	 * Appends the text, dropping carriage returns that follow a newline and any
+	 * trailing line ends, without splitting it into separate strings.
+	 */
+	private static void appendLines(StringBuilder sb, CharSequence text) {
+		final int len = text.length();
+		final int start = sb.length();
+		boolean afterNewline = false;
+		for (int i = 0; i < len; ++i) {
+			final char c = text.charAt(i);
+			if (c == '\r' && afterNewline) {
+				continue;
+			}
+			afterNewline = c == '\n';
+			sb.append(c);
+		}
+		trimNewlines(sb, start);
+	}
+
+	private static void trimNewlines(StringBuilder sb, int start) {
+		int end = sb.length();
+		while (end > start && sb.charAt(end - 1) == '\n') {
+			--end;
+		}
+		sb.setLength(end);
 	}
 
 	private static String getSimpleName(Class<?> cls) {
@@ -298,65 +1045,248 @@ public class Logger {
 		return name;
 	}
 
+	/**
+	 * Sets the caps used by {@link #toString(Object)}, {@link #dumpIntent(Intent, String)}
+	 * and the lazy renderers: elements shown per array, collection, map or bundle,
+	 * characters shown per string, and levels of nesting expanded.
+	 */
+	public static void setFormatLimits(int maxElements, int maxStringLength, int maxDepth) {
+		Logger.maxElements = Math.max(1, maxElements);
+		Logger.maxStringLength = Math.max(1, maxStringLength);
+		Logger.maxDepth = Math.max(0, maxDepth);
+	}
+
+	/**
+	 * Returns an argument that renders the intent when the line is written, so a
+	 * disabled line never unparcels the extras.
+	 */
+	public static LazyFormat lazyIntent(final Intent intent, final String prefix) {
+		return new LazyFormat() {
+			@Override
+			public void appendTo(StringBuilder sb) {
+				appendIntent(sb, intent, prefix);
+			}
+		};
+	}
+
+	/**
+	 * Returns an argument that renders the object as {@link #toString(Object)} does,
+	 * but only when the line is written.
+	 */
+	public static LazyFormat lazy(final Object obj) {
+		return new LazyFormat() {
+			@Override
+			public void appendTo(StringBuilder sb) {
+				appendBounded(sb, obj, 0);
+			}
+		};
+	}
+
 	public static String dumpIntent(Intent intent, String prefix) {
+		final StringBuilder sb = new StringBuilder();
+		appendIntent(sb, intent, prefix);
+		return sb.toString();
+	}
+
+	public static String toString(Object obj) {
+		final StringBuilder sb = new StringBuilder();
+		appendBounded(sb, obj, 0);
+		return sb.toString();
+	}
+
+	private static void appendIntent(StringBuilder sb, Intent intent, String prefix) {
 		if (intent == null) {
-			return "null";
+			sb.append("null");
+			return;
 		}
-		final StringBuilder sb = new StringBuilder();
 		sb.append(intent.toString());
 		final Uri data = intent.getData();
 		if (data != null) {
 			sb.append(" data=");
-			sb.append(data.toString());
+			appendTruncated(sb, data.toString());
 		}
 		final Bundle b = intent.getExtras();
 		if (b != null) {
 			b.setClassLoader(Logger.class.getClassLoader());
-			if (b.size() != 0) {
+			final int size = b.size();
+			if (size != 0) {
 				sb.append(":\n");
+				final int max = maxElements;
+				int n = 0;
 				final Iterator<String> iterator = b.keySet().iterator();
-				while (iterator.hasNext()) {
+				while (iterator.hasNext() && n < max) {
 					final String key = iterator.next();
 					if (prefix != null) {
 						sb.append(prefix);
 					}
 					sb.append(key);
 					sb.append(" = ");
-					sb.append(toString(b.get(key)));
-					if (iterator.hasNext()) {
+					appendBounded(sb, b.get(key), 1);
+					if (++n < size) {
 						sb.append("\n");
 					}
 				}
+				if (n < size) {
+					if (prefix != null) {
+						sb.append(prefix);
+					}
+					sb.append("...(");
+					sb.append(size - n);
+					sb.append(" more)");
+				}
 			}
 		}
-		return sb.toString();
 	}
 
-	public static String toString(Object obj) {
+	private static void appendBounded(StringBuilder sb, Object obj, int depth) {
 		if (obj == null) {
-			return "null";
+			sb.append("null");
+		}
+		else if (obj instanceof CharSequence) {
+			appendTruncated(sb, (CharSequence)obj);
 		}
 		else if (obj instanceof Object[]) {
-			return Arrays.toString((Object[])obj);
+			final Object[] array = (Object[])obj;
+			sb.append('[');
+			if (depth >= maxDepth && array.length != 0) {
+				appendMore(sb, array.length);
+			}
+			else {
+				final int n = Math.min(array.length, maxElements);
+				for (int i = 0; i < n; ++i) {
+					if (i != 0) {
+						sb.append(", ");
+					}
+					appendBounded(sb, array[i], depth + 1);
+				}
+				if (n < array.length) {
+					sb.append(", ");
+					appendMore(sb, array.length - n);
+				}
+			}
+			sb.append(']');
 		}
-		else if (obj instanceof int[]) {
-			return Arrays.toString((int[])obj);
+		else if (obj.getClass().isArray()) {
+			// primitive arrays have no nesting, only the element cap applies
+			final int len = Array.getLength(obj);
+			final int n = Math.min(len, maxElements);
+			sb.append('[');
+			for (int i = 0; i < n; ++i) {
+				if (i != 0) {
+					sb.append(", ");
+				}
+				sb.append(Array.get(obj, i));
+			}
+			if (n < len) {
+				sb.append(", ");
+				appendMore(sb, len - n);
+			}
+			sb.append(']');
 		}
-		else if (obj instanceof long[]) {
-			return Arrays.toString((long[])obj);
+		else if (obj instanceof Collection) {
+			final Collection<?> c = (Collection<?>)obj;
+			sb.append('[');
+			if (depth >= maxDepth && !c.isEmpty()) {
+				appendMore(sb, c.size());
+			}
+			else {
+				final int max = maxElements;
+				int n = 0;
+				for (Object element : c) {
+					if (n == max) {
+						sb.append(", ");
+						appendMore(sb, c.size() - n);
+						break;
+					}
+					if (n++ != 0) {
+						sb.append(", ");
+					}
+					appendBounded(sb, element, depth + 1);
+				}
+			}
+			sb.append(']');
 		}
-		else if (obj instanceof boolean[]) {
-			return Arrays.toString((boolean[])obj);
+		else if (obj instanceof Map) {
+			final Map<?, ?> m = (Map<?, ?>)obj;
+			sb.append('{');
+			if (depth >= maxDepth && !m.isEmpty()) {
+				appendMore(sb, m.size());
+			}
+			else {
+				final int max = maxElements;
+				int n = 0;
+				for (Map.Entry<?, ?> entry : m.entrySet()) {
+					if (n == max) {
+						sb.append(", ");
+						appendMore(sb, m.size() - n);
+						break;
+					}
+					if (n++ != 0) {
+						sb.append(", ");
+					}
+					appendBounded(sb, entry.getKey(), depth + 1);
+					sb.append('=');
+					appendBounded(sb, entry.getValue(), depth + 1);
+				}
+			}
+			sb.append('}');
+		}
+		else if (obj instanceof Bundle) {
+			final Bundle b = (Bundle)obj;
+			b.setClassLoader(Logger.class.getClassLoader());
+			final int size = b.size();
+			sb.append("Bundle{");
+			if (depth >= maxDepth && size != 0) {
+				appendMore(sb, size);
+			}
+			else {
+				final int max = maxElements;
+				int n = 0;
+				for (String key : b.keySet()) {
+					if (n == max) {
+						sb.append(", ");
+						appendMore(sb, size - n);
+						break;
+					}
+					if (n++ != 0) {
+						sb.append(", ");
+					}
+					sb.append(key);
+					sb.append('=');
+					appendBounded(sb, b.get(key), depth + 1);
+				}
+			}
+			sb.append('}');
+		}
+		else if (obj instanceof LazyFormat) {
+			((LazyFormat)obj).appendTo(sb);
+		}
+		else {
+			appendTruncated(sb, obj.toString());
 		}
-		else if (obj instanceof float[]) {
-			return Arrays.toString((float[])obj);
+	}
+
+	private static void appendTruncated(StringBuilder sb, CharSequence text) {
+		final int len = text.length();
+		final int max = maxStringLength;
+		if (len <= max) {
+			sb.append(text);
 		}
 		else {
-			return obj.toString();
+			sb.append(text, 0, max);
+			sb.append("...(");
+			sb.append(len);
+			sb.append(" chars)");
 		}
 	}
 
-	private static StackTraceElement getCallerFrame() {
+	private static void appendMore(StringBuilder sb, int more) {
+		sb.append("...(");
+		sb.append(more);
+		sb.append(" more)");
+	}
+
+	static StackTraceElement getCallerFrame() {
 		final StackTraceElement[] stack = Thread.currentThread().getStackTrace();
 		return stack.length > 4 ? stack[4] : null;
 	}
@@ -423,7 +1353,7 @@ public class Logger {
 		return sb.toString();
 	}
 
-	private static String getFname(String fname, String ext, int num) {
+	static String getFname(String fname, String ext, int num) {
 		return fname + "-" + num + "." + ext;
 	}
 
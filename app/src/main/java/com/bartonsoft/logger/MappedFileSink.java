@@ -0,0 +1,326 @@
+package com.bartonsoft.logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Log sink that appends lines to a set of fixed-size memory-mapped segment files,
+ * name-0.log .. name-(n-1).log, reusing the oldest segment when the current one is full.
+ * <p>
+ * Each segment starts with a magic number and a generation number that orders the
+ * segments, followed by records of a 4-byte length and the payload, either UTF-8
+ * text or a {@link BinaryLog} record.  A record is committed by writing its length
+ * after its bytes, and the slot after it is zeroed first, so a reader stops cleanly
+ * at the last complete line; as a zero length marks the end, empty records are
+ * never written.  Writes are plain memory copies; the kernel owns the dirty pages,
+ * so committed lines survive the process being killed.
+ */
+public final class MappedFileSink {
+	private static final int MAGIC = 0x4c4f4753; // "LOGS"
+	private static final int HEADER_SIZE = 16;
+	private static final int GENERATION_OFFSET = 8;
+	private static final String EXT = "log";
+
+	private final File dir;
+	private final String name;
+	private final int segmentSize;
+	private final int numSegments;
+
+	private MappedByteBuffer buffer;
+	private int segment;
+	private long generation;
+
+	public MappedFileSink(File dir, String name, int segmentSize, int numSegments) throws IOException {
+		if (segmentSize < 1024 || numSegments < 1) {
+			throw new IllegalArgumentException("segmentSize = " + segmentSize + ", numSegments = " + numSegments);
+		}
+		this.dir = dir;
+		this.name = name;
+		this.segmentSize = segmentSize;
+		this.numSegments = numSegments;
+		dir.mkdirs();
+		resume();
+	}
+
+	/**
+	 * Appends one line; longer lines than fit in a segment are truncated and empty
+	 * lines are dropped.
+	 */
+	public synchronized void write(CharSequence line) {
+		if (buffer == null || line.length() == 0) {
+			return;
+		}
+		final int maxBytes = segmentSize - HEADER_SIZE - 8;
+		final int worst = Math.min(line.length() * 3, maxBytes);
+		if (buffer.remaining() < worst + 8) {
+			try {
+				rotate();
+			}
+			catch (IOException e) {
+				buffer = null;
+				return;
+			}
+		}
+
+		final int start = buffer.position();
+		buffer.position(start + 4);
+		encode(line, buffer, start + 4 + maxBytes);
+		final int end = buffer.position();
+		if (buffer.remaining() >= 4) {
+			buffer.putInt(end, 0);
+		}
+		buffer.putInt(start, end - start - 4);
+	}
+
+	/**
+	 * Appends the remaining bytes of the given buffer as one binary record, unless
+	 * there are none.
+	 */
+	public synchronized void write(ByteBuffer record) {
+		if (buffer == null) {
+			return;
+		}
+		final int len = record.remaining();
+		if (len == 0 || len > segmentSize - HEADER_SIZE - 8) {
+			return;
+		}
+		if (buffer.remaining() < len + 8) {
+			try {
+				rotate();
+			}
+			catch (IOException e) {
+				buffer = null;
+				return;
+			}
+		}
+
+		final int start = buffer.position();
+		buffer.position(start + 4);
+		buffer.put(record);
+		final int end = buffer.position();
+		if (buffer.remaining() >= 4) {
+			buffer.putInt(end, 0);
+		}
+		buffer.putInt(start, len);
+	}
+
+	/**
+	 * Forces the mapped pages to storage; only needed to survive power loss.
+	 */
+	public synchronized void sync() {
+		if (buffer != null) {
+			buffer.force();
+		}
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Reads back all committed lines, oldest first.
+	 */
+	public synchronized List<String> readLines() throws IOException {
+		if (buffer != null) {
+			buffer.force();
+		}
+		return readLines(dir, name, numSegments);
+	}
+
+	/**
+	 * Reads back all committed lines of the segments written under the given name, oldest first.
+	 */
+	public static List<String> readLines(File dir, String name, int numSegments) throws IOException {
+		final List<File> files = new ArrayList<File>(numSegments);
+		for (int i = 0; i < numSegments; ++i) {
+			files.add(segmentFile(dir, name, i));
+		}
+		final List<byte[]> records = readRecords(files);
+		final List<String> lines = new ArrayList<String>(records.size());
+		for (byte[] record : records) {
+			lines.add(new String(record, "UTF-8"));
+		}
+		return lines;
+	}
+
+	/**
+	 * Reads back all committed records of the given segment files, ordered by generation.
+	 * Missing or foreign files are skipped.
+	 */
+	public static List<byte[]> readRecords(List<File> files) throws IOException {
+		final int num = files.size();
+		final long[] generations = new long[num];
+		final List<Integer> order = new ArrayList<Integer>(num);
+		for (int i = 0; i < num; ++i) {
+			generations[i] = readGeneration(files.get(i));
+			if (generations[i] > 0) {
+				int pos = order.size();
+				while (pos > 0 && generations[order.get(pos - 1)] > generations[i]) {
+					--pos;
+				}
+				order.add(pos, i);
+			}
+		}
+
+		final List<byte[]> records = new ArrayList<byte[]>();
+		for (Integer i : order) {
+			final RandomAccessFile raf = new RandomAccessFile(files.get(i), "r");
+			try {
+				final int size = (int)raf.length();
+				final byte[] data = new byte[size];
+				raf.readFully(data);
+				int pos = HEADER_SIZE;
+				while (pos + 4 <= size) {
+					final int len = getInt(data, pos);
+					if (len <= 0 || pos + 4 + len > size) {
+						break;
+					}
+					final byte[] record = new byte[len];
+					System.arraycopy(data, pos + 4, record, 0, len);
+					records.add(record);
+					pos += 4 + len;
+				}
+			}
+			finally {
+				raf.close();
+			}
+		}
+		return records;
+	}
+
+	private void resume() throws IOException {
+		int latest = -1;
+		long latestGen = 0;
+		for (int i = 0; i < numSegments; ++i) {
+			final File file = segmentFile(dir, name, i);
+			if (file.length() == segmentSize) {
+				final long gen = readGeneration(file);
+				if (gen > latestGen) {
+					latestGen = gen;
+					latest = i;
+				}
+			}
+		}
+
+		if (latest < 0) {
+			segment = -1;
+			generation = 0;
+			rotate();
+			return;
+		}
+
+		segment = latest;
+		generation = latestGen;
+		buffer = map(segmentFile(dir, name, segment));
+		int pos = HEADER_SIZE;
+		while (pos + 4 <= segmentSize) {
+			final int len = buffer.getInt(pos);
+			if (len <= 0 || pos + 4 + len > segmentSize) {
+				break;
+			}
+			pos += 4 + len;
+		}
+		buffer.position(pos);
+	}
+
+	private void rotate() throws IOException {
+		segment = (segment + 1) % numSegments;
+		++generation;
+		buffer = map(segmentFile(dir, name, segment));
+		// invalidate old contents before stamping the new generation
+		buffer.putInt(HEADER_SIZE, 0);
+		buffer.putLong(GENERATION_OFFSET, generation);
+		buffer.putInt(0, MAGIC);
+		buffer.position(HEADER_SIZE);
+	}
+
+	private MappedByteBuffer map(File file) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(segmentSize);
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	private static File segmentFile(File dir, String name, int num) {
+		return new File(dir, Logger.getFname(name, EXT, num));
+	}
+
+	private static long readGeneration(File file) throws IOException {
+		if (!file.exists() || file.length() < HEADER_SIZE) {
+			return 0;
+		}
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.readInt() != MAGIC) {
+				return 0;
+			}
+			raf.seek(GENERATION_OFFSET);
+			return raf.readLong();
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	private static int getInt(byte[] data, int pos) {
+		return (data[pos] << 24) | ((data[pos + 1] & 0xff) << 16) | ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+	}
+
+	/**
+	 * UTF-8 encodes straight into the buffer, stopping before the limit.
+	 */
+	static void encode(CharSequence text, ByteBuffer out, int limit) {
+		final int len = text.length();
+		for (int i = 0; i < len; ++i) {
+			int c = text.charAt(i);
+			if (Character.isHighSurrogate((char)c) && i + 1 < len && Character.isLowSurrogate(text.charAt(i + 1))) {
+				c = Character.toCodePoint((char)c, text.charAt(++i));
+			}
+			final int pos = out.position();
+			if (c < 0x80) {
+				if (pos + 1 > limit) {
+					return;
+				}
+				out.put((byte)c);
+			}
+			else if (c < 0x800) {
+				if (pos + 2 > limit) {
+					return;
+				}
+				out.put((byte)(0xc0 | (c >> 6)));
+				out.put((byte)(0x80 | (c & 0x3f)));
+			}
+			else if (c < 0x10000) {
+				if (pos + 3 > limit) {
+					return;
+				}
+				out.put((byte)(0xe0 | (c >> 12)));
+				out.put((byte)(0x80 | ((c >> 6) & 0x3f)));
+				out.put((byte)(0x80 | (c & 0x3f)));
+			}
+			else {
+				if (pos + 4 > limit) {
+					return;
+				}
+				out.put((byte)(0xf0 | (c >> 18)));
+				out.put((byte)(0x80 | ((c >> 12) & 0x3f)));
+				out.put((byte)(0x80 | ((c >> 6) & 0x3f)));
+				out.put((byte)(0x80 | (c & 0x3f)));
+			}
+		}
+	}
+}
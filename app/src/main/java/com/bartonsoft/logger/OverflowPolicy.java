@@ -0,0 +1,13 @@
+package com.bartonsoft.logger;
+
+/**
+ * What the async logger does when its ring buffer is full.
+ */
+public enum OverflowPolicy {
+	/** Wait for the writer thread to make room. */
+	BLOCK,
+	/** Discard the oldest queued record to make room for the new one. */
+	DROP_OLDEST,
+	/** Discard the new record and count it. */
+	DROP
+}
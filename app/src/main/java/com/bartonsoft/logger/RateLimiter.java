@@ -0,0 +1,162 @@
+package com.bartonsoft.logger;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+
+/**
+ * Per-site token buckets, a site being a tag or class with its message template,
+ * or a call site, with collapsing of identical repeated messages.  A storm from one
+ * site costs a map lookup and an argument comparison per call instead of a
+ * formatted line.
+ */
+final class RateLimiter {
+	private static final int MAX_SITES = 1024;
+	private static final long REPEAT_WINDOW = 60000L;
+
+	static final long SUPPRESS = -1L;
+
+	private final ConcurrentHashMap<Object, Site> sites = new ConcurrentHashMap<Object, Site>();
+	private final AtomicLong suppressed = new AtomicLong();
+	private volatile double tokensPerMilli;
+	private volatile int burst;
+
+	RateLimiter(double perSecond, int burst) {
+		setRate(perSecond, burst);
+	}
+
+	void setRate(double perSecond, int burst) {
+		this.tokensPerMilli = perSecond / 1000.0;
+		this.burst = Math.max(1, burst);
+	}
+
+	long getSuppressed() {
+		return suppressed.get();
+	}
+
+	/**
+	 * Returns {@link #SUPPRESS}, or else the number of identical repeats collapsed since
+	 * the last line from this site in the high 32 bits and the number of rate-limited
+	 * lines in the low 32 bits, so the caller can log a summary first.
+	 */
+	long check(Object key, Object[] objs) {
+		Site site = sites.get(key);
+		if (site == null) {
+			if (sites.size() >= MAX_SITES) {
+				sites.clear();
+			}
+			final Site created = new Site(burst);
+			site = sites.putIfAbsent(key, created);
+			if (site == null) {
+				site = created;
+			}
+		}
+
+		final long now = SystemClock.uptimeMillis();
+		synchronized (site) {
+			if (site.lastObjs != null && now - site.lastLogged < REPEAT_WINDOW && sameArgs(site.lastObjs, objs)) {
+				++site.repeated;
+				suppressed.incrementAndGet();
+				return SUPPRESS;
+			}
+
+			site.tokens = Math.min(burst, site.tokens + (now - site.lastRefill) * tokensPerMilli);
+			site.lastRefill = now;
+			if (site.tokens < 1) {
+				++site.limited;
+				suppressed.incrementAndGet();
+				return SUPPRESS;
+			}
+			site.tokens -= 1;
+
+			final long summary = ((long)site.repeated << 32) | site.limited;
+			site.repeated = 0;
+			site.limited = 0;
+			site.lastObjs = objs;
+			site.lastLogged = now;
+			return summary;
+		}
+	}
+
+	/**
+	 * Takes the summary, as {@link #check} returns it, of every site with lines suppressed
+	 * since its last line, so they can be logged without waiting for that site's next
+	 * line.  Repeats of the last line are still collapsed afterwards.
+	 */
+	Map<Object, Long> drain() {
+		Map<Object, Long> pending = null;
+		for (Map.Entry<Object, Site> entry : sites.entrySet()) {
+			final Site site = entry.getValue();
+			final long summary;
+			synchronized (site) {
+				summary = ((long)site.repeated << 32) | site.limited;
+				site.repeated = 0;
+				site.limited = 0;
+			}
+			if (summary != 0) {
+				if (pending == null) {
+					pending = new HashMap<Object, Long>();
+				}
+				pending.put(entry.getKey(), summary);
+			}
+		}
+		return pending == null ? Collections.<Object, Long>emptyMap() : pending;
+	}
+
+	private static boolean sameArgs(Object[] a, Object[] b) {
+		if (a == b) {
+			return true;
+		}
+		if (a == null || b == null || a.length != b.length) {
+			return false;
+		}
+		for (int i = 0; i < a.length; ++i) {
+			final Object x = a[i];
+			final Object y = b[i];
+			if (x == y) {
+				continue;
+			}
+			if (x == null || y == null || x.getClass() != y.getClass()) {
+				return false;
+			}
+			if (x instanceof Throwable) {
+				// a retry loop throws a new instance each time, so compare what would be printed
+				if (!sameThrowable((Throwable)x, (Throwable)y)) {
+					return false;
+				}
+			}
+			else if (!x.equals(y)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean sameThrowable(Throwable x, Throwable y) {
+		final String mx = x.getMessage();
+		final String my = y.getMessage();
+		if (mx == null ? my != null : !mx.equals(my)) {
+			return false;
+		}
+		final StackTraceElement[] sx = x.getStackTrace();
+		final StackTraceElement[] sy = y.getStackTrace();
+		return sx.length == sy.length && (sx.length == 0 || sx[0].equals(sy[0]));
+	}
+
+	private static final class Site {
+		double tokens;
+		long lastRefill = SystemClock.uptimeMillis();
+		Object[] lastObjs;
+		long lastLogged;
+		int repeated;
+		int limited;
+
+		Site(int burst) {
+			tokens = burst;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package com.bartonsoft.logger;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * The open spans of one thread, innermost last.  Each span is also an
+ * android.os.Trace section so it shows up in systrace and Perfetto.
+ */
+final class SpanStack {
+	// longer section names are rejected by Trace.beginSection
+	private static final int MAX_SECTION_NAME = 127;
+	private static final boolean HAS_TRACE = Build.VERSION.SDK_INT >= 18;
+
+	private String[] names = new String[8];
+	private long[] starts = new long[8];
+	private long[] childNanos = new long[8];
+	private int depth;
+
+	void begin(String name) {
+		if (depth == names.length) {
+			final int size = depth * 2;
+			final String[] n = new String[size];
+			final long[] s = new long[size];
+			final long[] c = new long[size];
+			System.arraycopy(names, 0, n, 0, depth);
+			System.arraycopy(starts, 0, s, 0, depth);
+			System.arraycopy(childNanos, 0, c, 0, depth);
+			names = n;
+			starts = s;
+			childNanos = c;
+		}
+		if (HAS_TRACE) {
+			Trace.beginSection(name.length() > MAX_SECTION_NAME ? name.substring(0, MAX_SECTION_NAME) : name);
+		}
+		names[depth] = name;
+		childNanos[depth] = 0;
+		starts[depth++] = System.nanoTime();
+	}
+
+	/**
+	 * Closes the innermost span and returns its duration, or -1 if none is open.
+	 */
+	long end(SpanStats stats) {
+		final long now = System.nanoTime();
+		if (depth == 0) {
+			return -1;
+		}
+		if (HAS_TRACE) {
+			Trace.endSection();
+		}
+		final int i = --depth;
+		final String name = names[i];
+		names[i] = null;
+		final long nanos = now - starts[i];
+		if (i > 0) {
+			childNanos[i - 1] += nanos;
+		}
+		stats.record(name, nanos, nanos - childNanos[i]);
+		return nanos;
+	}
+
+	int getDepth() {
+		return depth;
+	}
+}
@@ -0,0 +1,130 @@
+package com.bartonsoft.logger;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Durations of the spans ended with {@link Logger#endSpan()}, aggregated per span name.
+ */
+public final class SpanStats {
+	private static final int MAX_NAMES = 256;
+	private static final String OTHER_NAME = "<other>";
+
+	/**
+	 * The totals for one span name; the snapshot copies are not updated further.
+	 */
+	public static final class Stats {
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong selfNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getTotalNanos() {
+			return totalNanos.get();
+		}
+
+		/** Time not spent in spans nested inside this one. */
+		public long getSelfNanos() {
+			return selfNanos.get();
+		}
+
+		public long getMaxNanos() {
+			return maxNanos.get();
+		}
+
+		public long getAverageNanos() {
+			final long n = count.get();
+			return n == 0 ? 0 : totalNanos.get() / n;
+		}
+
+		private void record(long nanos, long self) {
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			selfNanos.addAndGet(self);
+			long max;
+			while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+			}
+		}
+
+		private Stats copy() {
+			final Stats s = new Stats();
+			s.count.set(count.get());
+			s.totalNanos.set(totalNanos.get());
+			s.selfNanos.set(selfNanos.get());
+			s.maxNanos.set(maxNanos.get());
+			return s;
+		}
+
+		private void appendTo(StringBuilder sb) {
+			sb.append("count = ");
+			sb.append(count.get());
+			sb.append(", total = ");
+			sb.append(totalNanos.get() / 1000);
+			sb.append("us, self = ");
+			sb.append(selfNanos.get() / 1000);
+			sb.append("us, avg = ");
+			sb.append(getAverageNanos() / 1000);
+			sb.append("us, max = ");
+			sb.append(maxNanos.get() / 1000);
+			sb.append("us");
+		}
+	}
+
+	private final ConcurrentHashMap<String, Stats> names = new ConcurrentHashMap<String, Stats>();
+
+	SpanStats() {
+	}
+
+	void record(String name, long nanos, long self) {
+		Stats s = names.get(name);
+		if (s == null) {
+			if (names.size() >= MAX_NAMES) {
+				name = OTHER_NAME;
+				s = names.get(name);
+			}
+			if (s == null) {
+				final Stats created = new Stats();
+				s = names.putIfAbsent(name, created);
+				if (s == null) {
+					s = created;
+				}
+			}
+		}
+		s.record(nanos, self);
+	}
+
+	/**
+	 * Returns a copy of the totals keyed by span name.
+	 */
+	public Map<String, Stats> snapshot() {
+		final Map<String, Stats> map = new TreeMap<String, Stats>();
+		for (Map.Entry<String, Stats> entry : names.entrySet()) {
+			map.put(entry.getKey(), entry.getValue().copy());
+		}
+		return map;
+	}
+
+	/**
+	 * Returns the current totals as text, one span name per line.
+	 */
+	public String dump() {
+		final StringBuilder sb = new StringBuilder("Span stats:");
+		for (Map.Entry<String, Stats> entry : snapshot().entrySet()) {
+			sb.append("\n  ");
+			sb.append(entry.getKey());
+			sb.append(": ");
+			entry.getValue().appendTo(sb);
+		}
+		return sb.toString();
+	}
+
+	public void reset() {
+		names.clear();
+	}
+}
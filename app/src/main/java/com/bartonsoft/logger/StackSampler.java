@@ -0,0 +1,152 @@
+package com.bartonsoft.logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.os.Process;
+
+/**
+ * Sampling profiler: a background thread grabs every thread's stack at a fixed
+ * interval, the same way {@link Logger#getThreadStacks(String, Thread)} does, and
+ * counts identical stacks.  {@link #writeCollapsed(File)} writes the counts in the
+ * collapsed-stack format read by flamegraph.pl and speedscope, one
+ * "thread;root;...;leaf count" line per distinct stack.
+ */
+public final class StackSampler implements Runnable {
+	private static final int MAX_STACKS = 20000;
+	private static final String OTHER = "<other>";
+
+	private final long intervalMillis;
+	private final int maxDepth;
+	private final HashMap<String, int[]> counts = new HashMap<String, int[]>();
+	private final StringBuilder key = new StringBuilder(1024);
+	private volatile Thread thread;
+	private int samples;
+
+	public StackSampler(long intervalMillis, int maxDepth) {
+		this.intervalMillis = intervalMillis;
+		this.maxDepth = maxDepth;
+	}
+
+	public synchronized void start() {
+		if (thread == null) {
+			thread = new Thread(this, "StackSampler");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	public void stop() {
+		final Thread t;
+		synchronized (this) {
+			t = thread;
+			thread = null;
+		}
+		if (t != null) {
+			t.interrupt();
+			try {
+				t.join(1000);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public boolean isRunning() {
+		return thread != null;
+	}
+
+	public synchronized int getSamples() {
+		return samples;
+	}
+
+	public synchronized void reset() {
+		counts.clear();
+		samples = 0;
+	}
+
+	/**
+	 * Writes the collapsed stacks collected so far, replacing the file.
+	 */
+	public synchronized void writeCollapsed(File file) throws IOException {
+		final Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+				out.write(entry.getKey());
+				out.write(' ');
+				out.write(Integer.toString(entry.getValue()[0]));
+				out.write('\n');
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	@Override
+	public void run() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+		final Thread self = Thread.currentThread();
+		while (thread == self) {
+			try {
+				sample(self);
+			}
+			catch (Exception e) {
+				Logger.warn(StackSampler.class, "run: sampling failed: ", e);
+			}
+			try {
+				Thread.sleep(intervalMillis);
+			}
+			catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	private void sample(Thread self) {
+		final Map<Thread, StackTraceElement[]> stacks = Thread.getAllStackTraces();
+		synchronized (this) {
+			++samples;
+			for (Map.Entry<Thread, StackTraceElement[]> entry : stacks.entrySet()) {
+				final Thread t = entry.getKey();
+				final StackTraceElement[] stack = entry.getValue();
+				if (t == self || stack.length == 0) {
+					continue;
+				}
+				key.setLength(0);
+				key.append(t.getName().replace(';', '_').replace(' ', '_'));
+				// stack traces are leaf first, collapsed stacks are root first; deep stacks keep their leaf frames
+				final int start = Math.min(stack.length, maxDepth) - 1;
+				for (int i = start; i >= 0; --i) {
+					final StackTraceElement frame = stack[i];
+					key.append(';');
+					key.append(frame.getClassName());
+					key.append('.');
+					key.append(frame.getMethodName());
+				}
+				add(key.toString());
+			}
+		}
+	}
+
+	private void add(String stack) {
+		int[] count = counts.get(stack);
+		if (count == null) {
+			if (counts.size() >= MAX_STACKS) {
+				stack = OTHER;
+				count = counts.get(stack);
+			}
+			if (count == null) {
+				count = new int[1];
+				counts.put(stack, count);
+			}
+		}
+		++count[0];
+	}
+}
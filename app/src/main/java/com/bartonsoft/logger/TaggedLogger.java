@@ -0,0 +1,110 @@
+package com.bartonsoft.logger;
+
+import java.util.logging.Level;
+
+import android.util.Log;
+
+/**
+ * Logger bound to a fixed tag, typically one per class:
+ * <pre>
+ * private static final TaggedLogger log = Logger.forClass(Foo.class);
+ * </pre>
+ * Lines are prefixed with the tag, so debug and info lines never walk the stack
+ * for the calling line, whatever the {@link Logger#getCallerMode()}; warnings and
+ * errors still do unless it is {@link Logger.CallerMode#NEVER}.
+ */
+public final class TaggedLogger {
+	private final String tag;
+
+	TaggedLogger(String tag) {
+		this.tag = tag;
+	}
+
+	public String getTag() {
+		return tag;
+	}
+
+	public boolean isDebugEnabled() {
+		return Logger.IS_DEBUG_ENABLED && Logger.isLoggable(Log.DEBUG, tag);
+	}
+
+	public boolean isInfoEnabled() {
+		return Logger.IS_INFO_ENABLED && Logger.isLoggable(Log.INFO, tag);
+	}
+
+	public boolean isWarnEnabled() {
+		return Logger.IS_WARNING_ENABLED && Logger.isLoggable(Log.WARN, tag);
+	}
+
+	public void debug(Object... objs) {
+		if (isDebugEnabled()) {
+			Logger.log(Level.INFO, null, tag, objs);
+		}
+		else {
+			Logger.recordFiltered(Level.INFO, tag, objs);
+		}
+	}
+
+	public void debug(LogSupplier supplier) {
+		if (isDebugEnabled()) {
+			Logger.log(Level.INFO, null, tag, supplier.get());
+		}
+		else {
+			Logger.recordFiltered(Level.INFO, tag, supplier);
+		}
+	}
+
+	public void info(Object... objs) {
+		if (isInfoEnabled()) {
+			Logger.log(Level.INFO, null, tag, objs);
+		}
+		else {
+			Logger.recordFiltered(Level.INFO, tag, objs);
+		}
+	}
+
+	public void info(LogSupplier supplier) {
+		if (isInfoEnabled()) {
+			Logger.log(Level.INFO, null, tag, supplier.get());
+		}
+		else {
+			Logger.recordFiltered(Level.INFO, tag, supplier);
+		}
+	}
+
+	public void warn(Object... objs) {
+		if (isWarnEnabled()) {
+			Logger.log(Level.FINE, Logger.getCallerMode() != Logger.CallerMode.NEVER ? Logger.getCallerFrame() : null,
+				tag, objs);
+		}
+		else {
+			Logger.recordFiltered(Level.FINE, tag, objs);
+		}
+	}
+
+	public void warn(LogSupplier supplier) {
+		if (isWarnEnabled()) {
+			Logger.log(Level.FINE, Logger.getCallerMode() != Logger.CallerMode.NEVER ? Logger.getCallerFrame() : null,
+				tag, supplier.get());
+		}
+		else {
+			Logger.recordFiltered(Level.FINE, tag, supplier);
+		}
+	}
+
+	public void error(Object... objs) {
+		if (Logger.allowError(Logger.getErrorSite(tag, objs), objs)) {
+			final StackTraceElement frame = Logger.getCallerMode() != Logger.CallerMode.NEVER ? Logger.getCallerFrame() : null;
+			Logger.log(Level.INFO, frame, tag, objs);
+			Logger.logError(false, frame, tag, objs);
+		}
+	}
+
+	public void fatal(Object... objs) {
+		final StackTraceElement frame = Logger.getCallerMode() != Logger.CallerMode.NEVER ? Logger.getCallerFrame() : null;
+		Logger.log(Level.INFO, frame, tag, objs);
+		Logger.logError(true, frame, tag, objs);
+		Logger.dumpFlightRecorder();
+		Logger.flush();
+	}
+}
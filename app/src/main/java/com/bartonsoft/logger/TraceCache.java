@@ -0,0 +1,65 @@
+package com.bartonsoft.logger;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU of stack trace fingerprints and how often each has been logged, so a
+ * trace that keeps recurring is printed in full only the first time.
+ */
+final class TraceCache {
+	private static final int MAX_CAUSES = 32;
+
+	private int maxSize;
+	private final LinkedHashMap<Long, int[]> counts = new LinkedHashMap<Long, int[]>(64, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, int[]> eldest) {
+			return size() > maxSize;
+		}
+	};
+
+	TraceCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	synchronized void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		if (maxSize == 0) {
+			counts.clear();
+		}
+	}
+
+	synchronized boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	/**
+	 * Returns how many times the fingerprint has now been seen, including this time.
+	 */
+	synchronized int record(long fingerprint) {
+		if (maxSize <= 0) {
+			return 1;
+		}
+		final Long key = Long.valueOf(fingerprint);
+		final int[] count = counts.get(key);
+		if (count != null) {
+			return ++count[0];
+		}
+		counts.put(key, new int[] { 1 });
+		return 1;
+	}
+
+	/**
+	 * Hashes the exception classes and frames of the whole cause chain, ignoring messages.
+	 */
+	static long fingerprint(Throwable e) {
+		long h = 1125899906842597L;
+		for (int depth = 0; e != null && depth < MAX_CAUSES; ++depth, e = e.getCause()) {
+			h = 31 * h + e.getClass().getName().hashCode();
+			for (StackTraceElement ste : e.getStackTrace()) {
+				h = 31 * h + ste.hashCode();
+			}
+		}
+		return h;
+	}
+}
@@ -0,0 +1,220 @@
+package com.bartonsoft.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import com.bartonsoft.logger.Logger;
+
+/**
+ * Runs database work off the calling thread.  Writes go to a single lane so they
+ * are serialized; reads go to a pool of lanes, so they never queue behind writes.
+ * Only when the database belongs to an open {@link DatabasePool} do reads also run
+ * on its reader connections and so are not held up by a long write; otherwise
+ * they share the one connection and wait at SQLite for a write in progress, UI
+ * priority or not.  Within a lane, higher priority tasks run first and equal
+ * priorities run in submission order.  Every call returns a {@link Future} that can be
+ * cancelled; a task that has not started yet is then skipped.
+ */
+public final class DatabaseExecutor {
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    public enum Priority {
+        /** The user is waiting for the result. */
+        UI,
+        NORMAL,
+        /** Sync and maintenance work. */
+        BACKGROUND
+    }
+
+    public interface Task<T> {
+        T run(SQLiteDatabase db) throws Exception;
+    }
+
+    /**
+     * Receives the outcome of a task on the main thread; not called if the task was cancelled.
+     */
+    public interface Callback<T> {
+        void onResult(T result);
+
+        void onError(Throwable error);
+    }
+
+    private final SQLiteDatabase db;
+    private final ThreadPoolExecutor writer;
+    private final ThreadPoolExecutor readers;
+    private final AtomicLong sequence = new AtomicLong();
+    private Handler mainHandler;
+
+    public DatabaseExecutor(SQLiteDatabase db, int numReaders) {
+        this.db = db;
+        writer = newLane("db-writer", 1, Process.THREAD_PRIORITY_BACKGROUND);
+        readers = newLane("db-reader", Math.max(1, numReaders), Process.THREAD_PRIORITY_DEFAULT);
+    }
+
+    private static ThreadPoolExecutor newLane(final String name, int threads, final int threadPriority) {
+        final ThreadPoolExecutor lane = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(threadPriority);
+                            r.run();
+                        }
+                    }, name + "-" + count.incrementAndGet());
+                }
+            });
+        lane.allowCoreThreadTimeOut(true);
+        return lane;
+    }
+
+    public <T> Future<T> read(Priority priority, Task<T> task) {
+        return read(priority, task, null);
+    }
+
+    public <T> Future<T> read(Priority priority, Task<T> task, Callback<T> callback) {
+        return submit(readers, "executor.read", true, priority, task, callback);
+    }
+
+    public <T> Future<T> write(Priority priority, Task<T> task) {
+        return write(priority, task, null);
+    }
+
+    public <T> Future<T> write(Priority priority, Task<T> task, Callback<T> callback) {
+        return submit(writer, "executor.write", false, priority, task, callback);
+    }
+
+    /**
+     * Stops accepting tasks; queued tasks still run.
+     */
+    public void shutdown() {
+        writer.shutdown();
+        readers.shutdown();
+    }
+
+    /**
+     * Stops accepting tasks, cancels the queued ones and interrupts running ones.
+     */
+    public void shutdownNow() {
+        for (Runnable r : writer.shutdownNow()) {
+            ((Job<?>)r).cancel(false);
+        }
+        for (Runnable r : readers.shutdownNow()) {
+            ((Job<?>)r).cancel(false);
+        }
+    }
+
+    private <T> Future<T> submit(ThreadPoolExecutor lane, final String span, final boolean readOnly,
+            Priority priority, final Task<T> task, Callback<T> callback) {
+        final long queued = System.nanoTime();
+        final Job<T> job = new Job<T>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                final boolean isDebug = Logger.isDebugEnabled(DatabaseExecutor.class);
+                final long wait = System.nanoTime() - queued;
+                final long time;
+                if (QueryMetrics.isEnabled()) {
+                    QueryMetrics.setQueueTime(wait);
+                }
+                Logger.beginSpan(span);
+                try {
+                    return task.run(readOnly ? DatabasePool.forRead(db) : db);
+                }
+                catch (Exception e) {
+                    Logger.warn(DatabaseExecutor.class, span + ": task " + task + " failed: ", e);
+                    throw e;
+                }
+                finally {
+                    time = Logger.endSpan();
+                    // the task's transactions are over, so the ResultCache can invalidate what they wrote
+                    ResultCache.settle();
+                    if (QueryMetrics.isEnabled()) {
+                        // a task that ran no statements must not pass its queue time on
+                        QueryMetrics.setQueueTime(0);
+                    }
+                    if (isDebug) {
+                        Logger.debug(DatabaseExecutor.class, span + ": wait = " + (wait / 1000) + "us, time = "
+                            + (time / 1000) + "us, task = " + task);
+                    }
+                }
+            }
+        }, priority.ordinal(), sequence.getAndIncrement(), callback);
+        lane.execute(job);
+        return job;
+    }
+
+    private synchronized Handler getMainHandler() {
+        if (mainHandler == null) {
+            mainHandler = new Handler(Looper.getMainLooper());
+        }
+        return mainHandler;
+    }
+
+    private final class Job<T> extends FutureTask<T> implements Comparable<Job<?>> {
+        private final int priority;
+        private final long seq;
+        private final Callback<T> callback;
+
+        Job(Callable<T> callable, int priority, long seq, Callback<T> callback) {
+            super(callable);
+            this.priority = priority;
+            this.seq = seq;
+            this.callback = callback;
+        }
+
+        @Override
+        public int compareTo(Job<?> other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+        }
+
+        @Override
+        protected void done() {
+            if (callback == null || isCancelled()) {
+                return;
+            }
+            T result = null;
+            Throwable error = null;
+            try {
+                result = get();
+            }
+            catch (ExecutionException e) {
+                error = e.getCause();
+            }
+            catch (InterruptedException e) {
+                error = e;
+            }
+            final T r = result;
+            final Throwable t = error;
+            getMainHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    if (t != null) {
+                        callback.onError(t);
+                    }
+                    else {
+                        callback.onResult(r);
+                    }
+                }
+            });
+        }
+    }
+}
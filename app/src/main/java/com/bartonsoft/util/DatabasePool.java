@@ -0,0 +1,190 @@
+package com.bartonsoft.util;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+import com.bartonsoft.logger.Logger;
+
+/**
+ * Opens a database in write-ahead logging mode with a set of read-only connections
+ * next to the writer.  Once opened, {@link SqliteWrapper} sends its read-only
+ * calls on the writer to a reader, unless the calling thread is inside a
+ * transaction on the writer and has to see its own uncommitted changes, or the
+ * query reads state kept per connection: last_insert_rowid(), changes(),
+ * total_changes() and tables in the temp schema.
+ * <p>
+ * enableWriteAheadLogging() already gives the writer a pool of connections for
+ * concurrent queries, but its size is set by the platform rather than the app and
+ * every statement there shares the one {@link StatementCache} of the writer.
+ * Separate OPEN_READONLY handles make the number of readers the caller's choice,
+ * can never take the write lock, and each keep their own statement cache, which is
+ * why they are opened here.  In WAL mode they run in parallel with the
+ * writer and with each other.  The WAL is checkpointed automatically by
+ * SQLite every {@code autoCheckpointPages} pages, and truncated here when it grows
+ * past {@code maxWalBytes}, which a long-running reader can otherwise cause.
+ */
+public final class DatabasePool {
+    private static final ConcurrentHashMap<SQLiteDatabase, DatabasePool> pools =
+        new ConcurrentHashMap<SQLiteDatabase, DatabasePool>();
+    private static final int CHECK_INTERVAL = 256;
+
+    private final SQLiteDatabase writer;
+    private final SQLiteDatabase[] readers;
+    private final File walFile;
+    private final long maxWalBytes;
+    private final AtomicInteger nextReader = new AtomicInteger();
+    private final AtomicInteger writes = new AtomicInteger();
+    private volatile boolean closed;
+
+    private DatabasePool(SQLiteDatabase writer, SQLiteDatabase[] readers, File walFile, long maxWalBytes) {
+        this.writer = writer;
+        this.readers = readers;
+        this.walFile = walFile;
+        this.maxWalBytes = maxWalBytes;
+    }
+
+    /**
+     * Opens or creates the database with WAL enabled and numReaders read-only
+     * connections.  With no readers, or if WAL cannot be enabled, every call stays
+     * on the writer.
+     */
+    public static DatabasePool open(File path, int numReaders, int autoCheckpointPages, long maxWalBytes) {
+        final SQLiteDatabase writer = SQLiteDatabase.openDatabase(path.getPath(), null,
+            SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY);
+        SQLiteDatabase[] readers = new SQLiteDatabase[0];
+        try {
+            if (writer.enableWriteAheadLogging()) {
+                pragma(writer, "PRAGMA wal_autocheckpoint = " + autoCheckpointPages);
+                readers = new SQLiteDatabase[Math.max(0, numReaders)];
+                for (int i = 0; i < readers.length; ++i) {
+                    readers[i] = SQLiteDatabase.openDatabase(path.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+                }
+            }
+            else {
+                Logger.warn(DatabasePool.class, "open: unable to enable write-ahead logging for " + path);
+            }
+        }
+        catch (RuntimeException e) {
+            // don't leak the connections opened so far
+            for (SQLiteDatabase reader : readers) {
+                if (reader != null) {
+                    reader.close();
+                }
+            }
+            writer.close();
+            throw e;
+        }
+        final DatabasePool pool = new DatabasePool(writer, readers, new File(path.getPath() + "-wal"), maxWalBytes);
+        pools.put(writer, pool);
+        if (Logger.isDebugEnabled(DatabasePool.class)) {
+            Logger.debug(DatabasePool.class, "open: path = " + path + ", readers = " + readers.length
+                + ", auto checkpoint = " + autoCheckpointPages + " pages, max wal = " + maxWalBytes);
+        }
+        return pool;
+    }
+
+    /**
+     * Returns the connection a read-only call on db should use: a reader if db is
+     * the writer of a pool and the calling thread is not in a transaction on it.
+     */
+    static SQLiteDatabase forRead(SQLiteDatabase db) {
+        if (pools.isEmpty()) {
+            return db;
+        }
+        final DatabasePool pool = pools.get(db);
+        return pool == null ? db : pool.getReader();
+    }
+
+    /**
+     * Counts a write on db and checkpoints the WAL if the policy calls for it.
+     */
+    static void afterWrite(SQLiteDatabase db) {
+        if (!pools.isEmpty()) {
+            final DatabasePool pool = pools.get(db);
+            if (pool != null && pool.writes.incrementAndGet() % CHECK_INTERVAL == 0) {
+                pool.checkWal();
+            }
+        }
+    }
+
+    public SQLiteDatabase getWriter() {
+        return writer;
+    }
+
+    /**
+     * Returns the next reader in turn, or the writer if there are no readers or the
+     * calling thread has a transaction open on the writer.
+     */
+    public SQLiteDatabase getReader() {
+        if (readers.length == 0 || closed || writer.inTransaction()) {
+            return writer;
+        }
+        return readers[(nextReader.getAndIncrement() & Integer.MAX_VALUE) % readers.length];
+    }
+
+    public int getReaderCount() {
+        return readers.length;
+    }
+
+    public long getWalSize() {
+        return walFile.length();
+    }
+
+    /**
+     * Runs a truncating checkpoint.  Returns false if it could not complete because
+     * a reader still needs the WAL, in which case it is retried on a later check.
+     */
+    public boolean checkpoint() {
+        final long before = walFile.length();
+        final boolean done = pragma(writer, "PRAGMA wal_checkpoint(TRUNCATE)");
+        if (Logger.isDebugEnabled(DatabasePool.class)) {
+            Logger.debug(DatabasePool.class, "checkpoint: wal = " + before + " -> " + walFile.length()
+                + ", complete = " + done);
+        }
+        return done;
+    }
+
+    private void checkWal() {
+        if (!closed && !writer.inTransaction() && walFile.length() > maxWalBytes) {
+            checkpoint();
+        }
+    }
+
+    public void close() {
+        closed = true;
+        pools.remove(writer);
+        for (SQLiteDatabase reader : readers) {
+            StatementCache.close(reader);
+            reader.close();
+        }
+        StatementCache.close(writer);
+        writer.close();
+    }
+
+    /**
+     * Runs a pragma and returns false if the first column of its result is nonzero,
+     * which for wal_checkpoint means it was blocked.
+     */
+    private static boolean pragma(SQLiteDatabase db, String sql) {
+        Cursor cursor = null;
+        try {
+            // some pragmas return a row, so they have to run as queries
+            cursor = db.rawQuery(sql, null);
+            return cursor == null || !cursor.moveToFirst() || cursor.getInt(0) == 0;
+        }
+        catch (SQLiteException e) {
+            Logger.warn(DatabasePool.class, "pragma: " + sql + ": ", e);
+            return false;
+        }
+        finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.bartonsoft.util;
+
+import android.database.CrossProcessCursor;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.CursorWrapper;
+
+import com.bartonsoft.logger.BinaryLog;
+import com.bartonsoft.logger.Logger;
+
+/**
+ * Cursor wrapper that measures how a result is actually consumed and reports it
+ * on {@link #close()}: time from the query to the first row, rows reached, and
+ * how many times the cursor window was filled and how long that took.  It only
+ * times the calls the caller makes anyway, so it never makes SQLite evaluate
+ * more of the query than the caller asks for.
+ */
+public final class InstrumentedCursor extends CursorWrapper {
+    private static final String TEMPLATE =
+        "{}: first row = {}us, rows = {}, fills = {}, fill time = {}us, open = {}us";
+
+    private final String label;
+    private final CrossProcessCursor windowed;
+    private final long opened = System.nanoTime();
+    private long firstRowNanos = -1;
+    private int maxPosition = -1;
+    private int fills;
+    private long fillNanos;
+    private CursorWindow lastWindow;
+    private int lastStart = -1;
+    private int lastRows = -1;
+    private boolean reported;
+    private QueryMetrics.Entry metrics;
+    private long queueNanos;
+    private long queryNanos;
+    private SlowQueryLog.Watch watch;
+
+    public InstrumentedCursor(Cursor cursor, String label) {
+        super(cursor);
+        this.label = label;
+        windowed = cursor instanceof CrossProcessCursor ? (CrossProcessCursor)cursor : null;
+    }
+
+    /**
+     * Also records the query in the given {@link QueryMetrics} entry when the cursor is closed.
+     */
+    void measure(QueryMetrics.Entry entry, long queueNanos, long queryNanos) {
+        this.metrics = entry;
+        this.queueNanos = queueNanos;
+        this.queryNanos = queryNanos;
+    }
+
+    /**
+     * Also checks the query against the {@link SlowQueryLog} threshold when the cursor is closed.
+     */
+    void watch(SlowQueryLog.Watch watch) {
+        this.watch = watch;
+    }
+
+    @Override
+    public int getCount() {
+        final long start = System.nanoTime();
+        final int count = super.getCount();
+        checkWindow(start);
+        return count;
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        final long start = System.nanoTime();
+        return moved(start, super.moveToFirst());
+    }
+
+    @Override
+    public boolean moveToNext() {
+        final long start = System.nanoTime();
+        return moved(start, super.moveToNext());
+    }
+
+    @Override
+    public boolean moveToPosition(int position) {
+        final long start = System.nanoTime();
+        return moved(start, super.moveToPosition(position));
+    }
+
+    @Override
+    public boolean move(int offset) {
+        final long start = System.nanoTime();
+        return moved(start, super.move(offset));
+    }
+
+    @Override
+    public boolean moveToLast() {
+        final long start = System.nanoTime();
+        return moved(start, super.moveToLast());
+    }
+
+    @Override
+    public boolean moveToPrevious() {
+        final long start = System.nanoTime();
+        return moved(start, super.moveToPrevious());
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        if (!reported) {
+            reported = true;
+            report();
+        }
+    }
+
+    private boolean moved(long start, boolean ok) {
+        final long now = checkWindow(start);
+        if (ok) {
+            if (firstRowNanos < 0) {
+                firstRowNanos = now - opened;
+            }
+            final int position = getPosition();
+            if (position > maxPosition) {
+                maxPosition = position;
+            }
+        }
+        return ok;
+    }
+
+    /**
+     * Counts the call as a window fill if it left a different window or range of rows behind.
+     */
+    private long checkWindow(long start) {
+        final long now = System.nanoTime();
+        if (windowed != null) {
+            final CursorWindow window = windowed.getWindow();
+            if (window != null) {
+                final int windowStart = window.getStartPosition();
+                final int windowRows = window.getNumRows();
+                if (window != lastWindow || windowStart != lastStart || windowRows != lastRows) {
+                    ++fills;
+                    fillNanos += now - start;
+                    lastWindow = window;
+                    lastStart = windowStart;
+                    lastRows = windowRows;
+                }
+            }
+        }
+        return now;
+    }
+
+    private void report() {
+        if (metrics != null) {
+            metrics.record(queueNanos, queryNanos + fillNanos, maxPosition + 1);
+        }
+        if (watch != null) {
+            watch.closed(fillNanos);
+        }
+        if (label == null || !Logger.isDebugEnabled(SqliteWrapper.class)) {
+            return;
+        }
+        final long open = System.nanoTime() - opened;
+        final BinaryLog bin = Logger.getBinaryLog();
+        if (bin != null) {
+            bin.log(bin.template(TEMPLATE), label, firstRowNanos < 0 ? -1 : firstRowNanos / 1000, maxPosition + 1,
+                fills, fillNanos / 1000, open / 1000);
+        }
+        else {
+            Logger.debug(SqliteWrapper.class, label + ": first row = "
+                + (firstRowNanos < 0 ? "none" : (firstRowNanos / 1000) + "us") + ", rows = " + (maxPosition + 1)
+                + ", fills = " + fills + ", fill time = " + (fillNanos / 1000) + "us, open = " + (open / 1000) + "us");
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package com.bartonsoft.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.bartonsoft.util.SlowQueryLog.Operation;
+
+/**
+ * Latency histograms of {@link SqliteWrapper} operations, kept per operation and
+ * {@link SqlFingerprint}, with the rows returned or affected.  Recording is off
+ * until {@link #setEnabled(boolean)} is called, so the only cost in the default
+ * configuration is one volatile read per operation.
+ * <p>
+ * Execution time is the time of the call; for queries it also includes the window
+ * fills made while the caller read the cursor, and is recorded when the cursor is
+ * closed, with the rows the caller moved through.  Queue time is how long a
+ * {@link DatabaseExecutor} task was queued for its lane, charged to the first
+ * statement the task runs; statements run directly have none.  Time spent
+ * waiting for a connection, in SQLite's own pool or for a database lock, is not
+ * visible from here and is part of execution time.
+ */
+public final class QueryMetrics {
+    private static final int MAX_FINGERPRINTS = 1024;
+    private static final String OTHER = "<other>";
+
+    /**
+     * Log-linear histogram of nanosecond values, in the manner of HdrHistogram: exact
+     * below 32ns and within 1/16 above, up to about 36 minutes, in 2.5KB.
+     */
+    public static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int MAX_BITS = 41;
+        private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+        private static final int NUM_BUCKETS = (MAX_BITS - SUB_BITS) * SUB_COUNT + 2 * SUB_COUNT;
+
+        private final AtomicIntegerArray counts = new AtomicIntegerArray(NUM_BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            final long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+            counts.incrementAndGet(index(value));
+            count.incrementAndGet();
+            total.addAndGet(value);
+            long m = max.get();
+            while (value > m && !max.compareAndSet(m, value)) {
+                m = max.get();
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getTotalNanos() {
+            return total.get();
+        }
+
+        public long getMaxNanos() {
+            return max.get();
+        }
+
+        public long getMeanNanos() {
+            final long n = count.get();
+            return n == 0 ? 0 : total.get() / n;
+        }
+
+        /**
+         * Returns the value at the given percentile, 0 to 100, as the highest value of its
+         * bucket but no more than the maximum; 0 if nothing was recorded.
+         */
+        public long getPercentileNanos(double percentile) {
+            final long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long)Math.ceil(percentile / 100.0 * n));
+            long seen = 0;
+            for (int i = 0; i < NUM_BUCKETS; ++i) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(highest(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        Histogram copy() {
+            final Histogram h = new Histogram();
+            for (int i = 0; i < NUM_BUCKETS; ++i) {
+                h.counts.set(i, counts.get(i));
+            }
+            h.count.set(count.get());
+            h.total.set(total.get());
+            h.max.set(max.get());
+            return h;
+        }
+
+        void appendTo(StringBuilder sb) {
+            sb.append("n = ");
+            sb.append(count.get());
+            sb.append(", p50 = ");
+            sb.append(getPercentileNanos(50) / 1000);
+            sb.append("us, p95 = ");
+            sb.append(getPercentileNanos(95) / 1000);
+            sb.append("us, p99 = ");
+            sb.append(getPercentileNanos(99) / 1000);
+            sb.append("us, max = ");
+            sb.append(max.get() / 1000);
+            sb.append("us");
+        }
+
+        static int index(long value) {
+            if (value < 2 * SUB_COUNT) {
+                return (int)value;
+            }
+            // keep the top SUB_BITS + 1 bits; the shift says which power of two
+            final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return shift * SUB_COUNT + (int)(value >>> shift);
+        }
+
+        static long highest(int index) {
+            if (index < 2 * SUB_COUNT) {
+                return index;
+            }
+            final int shift = index / SUB_COUNT - 1;
+            final long sub = index - shift * SUB_COUNT;
+            return ((sub + 1) << shift) - 1;
+        }
+    }
+
+    /**
+     * The metrics of one operation and fingerprint; the snapshot copies are not updated further.
+     */
+    public static final class Entry {
+        private final Operation operation;
+        private final String fingerprint;
+        private final Histogram exec;
+        private final Histogram queue;
+        private final AtomicLong rows = new AtomicLong();
+
+        Entry(Operation operation, String fingerprint) {
+            this(operation, fingerprint, new Histogram(), new Histogram());
+        }
+
+        private Entry(Operation operation, String fingerprint, Histogram exec, Histogram queue) {
+            this.operation = operation;
+            this.fingerprint = fingerprint;
+            this.exec = exec;
+            this.queue = queue;
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        /** Time executing. */
+        public Histogram getExec() {
+            return exec;
+        }
+
+        /** Time queued for a {@link DatabaseExecutor} lane. */
+        public Histogram getQueue() {
+            return queue;
+        }
+
+        /** Rows returned or affected. */
+        public long getRows() {
+            return rows.get();
+        }
+
+        void record(long queueNanos, long execNanos, long rowCount) {
+            exec.record(execNanos);
+            if (queueNanos > 0) {
+                queue.record(queueNanos);
+            }
+            if (rowCount > 0) {
+                rows.addAndGet(rowCount);
+            }
+        }
+
+        private Entry copy() {
+            final Entry e = new Entry(operation, fingerprint, exec.copy(), queue.copy());
+            e.rows.set(rows.get());
+            return e;
+        }
+    }
+
+    private static final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private static final ConcurrentHashMap<String, String> fingerprints = new ConcurrentHashMap<String, String>();
+    private static final ThreadLocal<long[]> pendingQueueTime = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+    private static volatile boolean enabled;
+    private static volatile int maxEntries = 128;
+
+    private QueryMetrics() {
+    }
+
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets how many operation and fingerprint pairs get their own entry; the rest are
+     * added up under an "&lt;other&gt;" fingerprint per operation.
+     */
+    public static void setMaxEntries(int max) {
+        maxEntries = max;
+    }
+
+    static void record(Operation op, String sql, long execNanos, long rows) {
+        entry(op, fingerprint(sql)).record(takeQueueTime(), execNanos, rows);
+    }
+
+    static void record(Operation op, Uri uri, String selection, long execNanos, long rows) {
+        entry(op, providerFingerprint(uri, selection)).record(takeQueueTime(), execNanos, rows);
+    }
+
+    /**
+     * Records a query when its cursor is closed, wrapping it in an {@link InstrumentedCursor}
+     * unless it already is one.  A null cursor is recorded at once with no rows.
+     */
+    static Cursor measure(Cursor cursor, Operation op, String sql, long queryNanos) {
+        return measure(cursor, entry(op, fingerprint(sql)), queryNanos);
+    }
+
+    static Cursor measure(Cursor cursor, Operation op, Uri uri, String selection, long queryNanos) {
+        return measure(cursor, entry(op, providerFingerprint(uri, selection)), queryNanos);
+    }
+
+    private static Cursor measure(Cursor cursor, Entry entry, long queryNanos) {
+        final long queued = takeQueueTime();
+        if (cursor == null) {
+            entry.record(queued, queryNanos, 0);
+            return null;
+        }
+        final InstrumentedCursor instrumented =
+            cursor instanceof InstrumentedCursor ? (InstrumentedCursor)cursor : new InstrumentedCursor(cursor, null);
+        instrumented.measure(entry, queued, queryNanos);
+        return instrumented;
+    }
+
+    /**
+     * Called by {@link DatabaseExecutor} before a task runs, with the time it was queued.
+     */
+    static void setQueueTime(long nanos) {
+        pendingQueueTime.get()[0] = nanos;
+    }
+
+    private static long takeQueueTime() {
+        final long[] queued = pendingQueueTime.get();
+        final long nanos = queued[0];
+        queued[0] = 0;
+        return nanos;
+    }
+
+    /**
+     * Returns a copy of the entries keyed by operation and fingerprint.
+     */
+    public static Map<String, Entry> snapshot() {
+        final Map<String, Entry> map = new TreeMap<String, Entry>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().copy());
+        }
+        return map;
+    }
+
+    /**
+     * Returns the current metrics as text, one entry per line.
+     */
+    public static String dump() {
+        final StringBuilder sb = new StringBuilder("Query metrics:");
+        for (Entry entry : snapshot().values()) {
+            sb.append("\n  ");
+            sb.append(entry.operation.name());
+            sb.append(' ');
+            sb.append(entry.fingerprint);
+            sb.append(": exec ");
+            entry.exec.appendTo(sb);
+            if (entry.queue.getCount() != 0) {
+                sb.append("; queue ");
+                entry.queue.appendTo(sb);
+            }
+            sb.append("; rows = ");
+            sb.append(entry.rows.get());
+        }
+        return sb.toString();
+    }
+
+    public static void reset() {
+        entries.clear();
+    }
+
+    private static String fingerprint(String sql) {
+        String text = fingerprints.get(sql);
+        if (text == null) {
+            text = SqlFingerprint.of(sql).getText();
+            cacheFingerprint(sql, text);
+        }
+        return text;
+    }
+
+    private static String providerFingerprint(Uri uri, String selection) {
+        final String key = selection == null ? uri.toString() : uri.toString() + '\u0000' + selection;
+        String text = fingerprints.get(key);
+        if (text == null) {
+            final StringBuilder sb = new StringBuilder();
+            SlowQueryLog.appendRedacted(sb, uri);
+            if (selection != null) {
+                sb.append(" WHERE ");
+                sb.append(SqlFingerprint.of(selection).getText());
+            }
+            text = sb.toString();
+            cacheFingerprint(key, text);
+        }
+        return text;
+    }
+
+    private static void cacheFingerprint(String key, String text) {
+        if (fingerprints.size() >= MAX_FINGERPRINTS) {
+            // SQL with embedded literals would otherwise fill the map
+            fingerprints.clear();
+        }
+        fingerprints.put(key, text);
+    }
+
+    private static Entry entry(Operation op, String fingerprint) {
+        String key = op.name() + ' ' + fingerprint;
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            String text = fingerprint;
+            if (entries.size() >= maxEntries) {
+                text = OTHER;
+                key = op.name() + ' ' + OTHER;
+                entry = entries.get(key);
+            }
+            if (entry == null) {
+                final Entry created = new Entry(op, text);
+                entry = entries.putIfAbsent(key, created);
+                if (entry == null) {
+                    entry = created;
+                }
+            }
+        }
+        return entry;
+    }
+}
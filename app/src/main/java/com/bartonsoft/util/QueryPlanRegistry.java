@@ -0,0 +1,318 @@
+package com.bartonsoft.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Bounded registry of statement fingerprints and their query plans.  The first time
+ * a {@link SqlFingerprint} is seen its plan is read with EXPLAIN QUERY PLAN and
+ * flagged for full table scans and temporary B-trees; after that a sighting of SQL
+ * seen recently costs two map lookups, one in a bounded cache from SQL text to its
+ * fingerprint, so it is not tokenized again, and one of the fingerprint.  Once the
+ * registry is full new fingerprints are only counted.  Only SQL without literals,
+ * which is the same as its fingerprint bar whitespace and case, is kept as text;
+ * SQL with embedded literals is tokenized on each sighting and never kept.
+ * <p>
+ * {@link #report()} lists every fingerprint with its flags and plan, sorted and
+ * without counts, so reports from two releases can be compared with diff to catch
+ * plan regressions.
+ */
+public final class QueryPlanRegistry {
+    /** The plan reads a whole table, through no index. */
+    public static final int FULL_SCAN = 1;
+    /** The plan sorts or groups through a temporary B-tree. */
+    public static final int TEMP_B_TREE = 2;
+    /** The statement had literals embedded instead of bound. */
+    public static final int LITERALS = 4;
+    /** EXPLAIN QUERY PLAN failed. */
+    public static final int ERROR = 8;
+
+    private static final String[] FLAG_NAMES = { "FULL_SCAN", "TEMP_B_TREE", "LITERALS", "ERROR" };
+
+    /**
+     * One fingerprint; the plan is null until the first sighting has explained it.
+     */
+    public static final class Plan {
+        private final SqlFingerprint fingerprint;
+        private final AtomicLong count = new AtomicLong(1);
+        private volatile String[] details;
+        private volatile int flags;
+
+        Plan(SqlFingerprint fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        public SqlFingerprint getFingerprint() {
+            return fingerprint;
+        }
+
+        /** The detail column of each plan row, or null if not explained yet. */
+        public String[] getDetails() {
+            return details;
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+
+        /** Times the fingerprint has been seen. */
+        public long getCount() {
+            return count.get();
+        }
+
+        void appendTo(StringBuilder sb) {
+            sb.append(fingerprint.getId());
+            sb.append(' ');
+            appendFlags(sb, flags);
+            sb.append(' ');
+            sb.append(fingerprint.getText());
+            final String[] d = details;
+            if (d != null) {
+                for (String detail : d) {
+                    sb.append("\n    ");
+                    sb.append(detail);
+                }
+            }
+        }
+    }
+
+    private static final int MAX_FINGERPRINTS = 1024;
+
+    private static final ConcurrentHashMap<SqlFingerprint, Plan> plans = new ConcurrentHashMap<SqlFingerprint, Plan>();
+    private static final ConcurrentHashMap<String, SqlFingerprint> fingerprints =
+        new ConcurrentHashMap<String, SqlFingerprint>();
+    private static final AtomicLong overflow = new AtomicLong();
+    private static volatile int maxEntries = 512;
+
+    private QueryPlanRegistry() {
+    }
+
+    public static void setMaxEntries(int max) {
+        maxEntries = max;
+    }
+
+    /**
+     * Counts a sighting of sql, explaining it on db if its fingerprint is new.  Returns
+     * the new plan, or null if the fingerprint was already known or the registry is full.
+     */
+    public static Plan check(SQLiteDatabase db, String sql) {
+        final SqlFingerprint fingerprint = fingerprint(sql);
+        Plan plan = plans.get(fingerprint);
+        if (plan != null) {
+            plan.count.incrementAndGet();
+            return null;
+        }
+        if (plans.size() >= maxEntries) {
+            overflow.incrementAndGet();
+            return null;
+        }
+        final Plan created = new Plan(fingerprint);
+        plan = plans.putIfAbsent(fingerprint, created);
+        if (plan != null) {
+            plan.count.incrementAndGet();
+            return null;
+        }
+        explain(db, created, sql);
+        return created;
+    }
+
+    /**
+     * Returns the plan of sql if its fingerprint is known and explained, else null;
+     * never runs EXPLAIN.
+     */
+    static Plan find(String sql) {
+        final Plan plan = plans.get(fingerprint(sql));
+        return plan != null && plan.details != null ? plan : null;
+    }
+
+    /**
+     * Returns the plan of sql, explaining it on db if its fingerprint is new, without
+     * counting a sighting.  When the registry is full the plan is explained but not
+     * kept.  The plan's details are null while another thread is still explaining it.
+     */
+    static Plan lookup(SQLiteDatabase db, String sql) {
+        final SqlFingerprint fingerprint = fingerprint(sql);
+        Plan plan = plans.get(fingerprint);
+        if (plan == null) {
+            final Plan created = new Plan(fingerprint);
+            created.count.set(0);
+            plan = plans.size() >= maxEntries ? null : plans.putIfAbsent(fingerprint, created);
+            if (plan == null) {
+                explain(db, created, sql);
+                plan = created;
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Sightings of new fingerprints that were dropped because the registry was full.
+     */
+    public static long getOverflow() {
+        return overflow.get();
+    }
+
+    /**
+     * Returns the plans keyed by fingerprint text.
+     */
+    public static Map<String, Plan> snapshot() {
+        final Map<String, Plan> map = new TreeMap<String, Plan>();
+        for (Plan plan : plans.values()) {
+            map.put(plan.fingerprint.getText(), plan);
+        }
+        return map;
+    }
+
+    /**
+     * Returns the plans with any of the given flags, sorted by fingerprint text.
+     */
+    public static List<Plan> getFlagged(int mask) {
+        final List<Plan> list = new ArrayList<Plan>();
+        for (Plan plan : snapshot().values()) {
+            if ((plan.flags & mask) != 0) {
+                list.add(plan);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns one entry per fingerprint, "id flags fingerprint" followed by the indented
+     * plan, sorted by fingerprint text.
+     */
+    public static String report() {
+        final Map<String, Plan> map = snapshot();
+        int flagged = 0;
+        for (Plan plan : map.values()) {
+            if ((plan.flags & (FULL_SCAN | TEMP_B_TREE)) != 0) {
+                ++flagged;
+            }
+        }
+        final StringBuilder sb = new StringBuilder(map.size() * 128);
+        sb.append("# query plans: ");
+        sb.append(map.size());
+        sb.append(" fingerprints, ");
+        sb.append(flagged);
+        sb.append(" flagged\n");
+        for (Plan plan : map.values()) {
+            plan.appendTo(sb);
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes {@link #report()}, replacing the file.
+     */
+    public static void writeReport(File file) throws IOException {
+        final Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(report());
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    public static void reset() {
+        plans.clear();
+        fingerprints.clear();
+        overflow.set(0);
+    }
+
+    private static SqlFingerprint fingerprint(String sql) {
+        SqlFingerprint fingerprint = fingerprints.get(sql);
+        if (fingerprint == null) {
+            fingerprint = SqlFingerprint.of(sql);
+            // SQL with embedded literals would keep user data and fill the map
+            if (fingerprint.getLiterals() == 0) {
+                if (fingerprints.size() >= MAX_FINGERPRINTS) {
+                    fingerprints.clear();
+                }
+                fingerprints.put(sql, fingerprint);
+            }
+        }
+        return fingerprint;
+    }
+
+    static void appendFlags(StringBuilder sb, int flags) {
+        if (flags == 0) {
+            sb.append('-');
+            return;
+        }
+        boolean first = true;
+        for (int i = 0; i < FLAG_NAMES.length; ++i) {
+            if ((flags & (1 << i)) != 0) {
+                if (!first) {
+                    sb.append(',');
+                }
+                sb.append(FLAG_NAMES[i]);
+                first = false;
+            }
+        }
+    }
+
+    private static void explain(SQLiteDatabase db, Plan plan, String sql) {
+        int flags = plan.fingerprint.getLiterals() > 0 ? LITERALS : 0;
+        final List<String> details = new ArrayList<String>();
+        Cursor cursor = null;
+        try {
+            // unbound parameters are NULL, which is enough for the planner
+            cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+            if (cursor != null) {
+                int col = cursor.getColumnIndex("detail");
+                if (col < 0) {
+                    col = cursor.getColumnCount() - 1;
+                }
+                while (cursor.moveToNext()) {
+                    final String detail = cursor.getString(col);
+                    details.add(detail);
+                    flags |= flagsOf(detail);
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            details.add("error: " + e.getMessage());
+            flags |= ERROR;
+        }
+        finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        plan.flags = flags;
+        plan.details = details.toArray(new String[details.size()]);
+    }
+
+    /**
+     * Parses one plan row: "SCAN TABLE t" before SQLite 3.24 and "SCAN t" after are full
+     * scans unless they go through an index, and "USE TEMP B-TREE FOR ..." is a sort.
+     */
+    static int flagsOf(String detail) {
+        if (detail == null) {
+            return 0;
+        }
+        int flags = 0;
+        if (detail.startsWith("SCAN ") && detail.indexOf(" USING ") < 0 && detail.indexOf("VIRTUAL TABLE") < 0
+                && !detail.startsWith("SCAN SUBQUERY") && !detail.startsWith("SCAN (")
+                && !detail.startsWith("SCAN CONSTANT ROW")) {
+            flags |= FULL_SCAN;
+        }
+        if (detail.startsWith("USE TEMP B-TREE")) {
+            flags |= TEMP_B_TREE;
+        }
+        return flags;
+    }
+}
@@ -0,0 +1,488 @@
+package com.bartonsoft.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+
+import com.bartonsoft.logger.Logger;
+
+/**
+ * Optional LRU cache of single-value query results, keyed by scope, table, SQL and
+ * arguments and bounded by an estimated memory budget.  A scope is a database path
+ * or a content provider authority.  Only queries of one plain table are cached,
+ * never joins, subqueries or views.
+ * <p>
+ * Writes made through {@link SqliteWrapper} bump a version counter for the table,
+ * or for the whole scope when the write cannot be put down to one table: the table
+ * is not a plain name, it has triggers, or the schema has foreign keys that cascade.
+ * Table names are compared trimmed, unquoted, in lower case and without the main
+ * schema.  Each entry remembers the version it was read under and is ignored once
+ * that has moved on, so invalidation costs one increment however many entries are
+ * affected.  Writes that bypass SqliteWrapper, including those made by other
+ * processes, are not seen.
+ * <p>
+ * A write inside a caller's transaction marks its scope as having a write open
+ * instead; until the transaction ends nothing is read from or stored in the cache
+ * for that scope, so a reader on another connection cannot cache the old value.
+ * The end is noticed, and the scope invalidated, by the next SqliteWrapper call on
+ * the writing thread or when its {@link DatabaseExecutor} task returns.
+ */
+public final class ResultCache {
+    static final Object MISS = new Object();
+    /** The version of a read that must not be cached; get() misses and put() ignores it. */
+    static final long UNCACHEABLE = -1;
+
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final Object NULL = new Object();
+
+    private static final class Entry {
+        final long version;
+        final Object value;
+        final int size;
+
+        Entry(long version, Object value, int size) {
+            this.version = version;
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /**
+     * What the cache needs to know of a database's schema, read from sqlite_master.
+     */
+    private static final class Schema {
+        final Set<String> tables = new HashSet<String>();
+        final Set<String> triggered = new HashSet<String>();
+        boolean cascades;
+    }
+
+    private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    private static final ConcurrentHashMap<String, AtomicLong> versions = new ConcurrentHashMap<String, AtomicLong>();
+    private static final AtomicLong globalVersion = new AtomicLong();
+    private static final ConcurrentHashMap<String, AtomicInteger> openWrites =
+        new ConcurrentHashMap<String, AtomicInteger>();
+    private static final AtomicInteger totalOpenWrites = new AtomicInteger();
+    // the scopes the thread wrote to inside a transaction, and the database it is on
+    private static final ThreadLocal<Map<String, SQLiteDatabase>> pending =
+        new ThreadLocal<Map<String, SQLiteDatabase>>() {
+            @Override
+            protected Map<String, SQLiteDatabase> initialValue() {
+                return new HashMap<String, SQLiteDatabase>();
+            }
+        };
+    private static final ConcurrentHashMap<String, Schema> schemas = new ConcurrentHashMap<String, Schema>();
+    private static volatile long budget;
+    private static long bytes;
+    private static long hits;
+    private static long misses;
+
+    private ResultCache() {
+    }
+
+    /**
+     * Sets the memory budget in bytes; 0, the default, turns the cache off.
+     */
+    public static void setBudget(long bytes) {
+        budget = Math.max(0, bytes);
+        synchronized (entries) {
+            trim();
+        }
+    }
+
+    public static boolean isEnabled() {
+        return budget > 0;
+    }
+
+    public static void clear() {
+        synchronized (entries) {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    /**
+     * Returns the scope of a database, which its {@link DatabasePool} readers share, or
+     * null for an in-memory database, whose results are not cached.
+     */
+    static String scope(SQLiteDatabase db) {
+        final String path = db.getPath();
+        return path == null || path.length() == 0 || ":memory:".equals(path) ? null : path;
+    }
+
+    /**
+     * Returns the name that versions of a table of db are kept under, or null if table
+     * is not a plain table of the main schema and its results must not be cached.
+     */
+    static String table(SQLiteDatabase db, String scope, String table) {
+        final String name = normalize(table);
+        return name != null && schema(db, scope).tables.contains(name) ? name : null;
+    }
+
+    /**
+     * Returns the table name trimmed, unquoted, in lower case and without a main.
+     * schema, or null if it is anything but a single identifier, such as a join, a
+     * subquery or a table of another schema.
+     */
+    static String normalize(String table) {
+        if (table == null) {
+            return null;
+        }
+        final SqlTokenizer tok = new SqlTokenizer(table);
+        String name = identifier(tok);
+        if (name != null && tok.next() != SqlTokenizer.END) {
+            if (!tok.is(".") || !name.equals("main")) {
+                return null;
+            }
+            name = identifier(tok);
+            if (name != null && tok.next() != SqlTokenizer.END) {
+                return null;
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Returns whether a generated single-table select reads nothing but its own
+     * table, that is it has no subquery, join or IN of another table in its
+     * columns or where clause, any of which would let its result change on writes
+     * to a table it is not versioned under.
+     */
+    static boolean readsOneTable(String sql) {
+        final SqlTokenizer tok = new SqlTokenizer(sql);
+        int selects = 0;
+        int froms = 0;
+        boolean in = false;
+        while (tok.next() != SqlTokenizer.END) {
+            if (tok.is("select")) {
+                ++selects;
+            }
+            else if (tok.is("from")) {
+                ++froms;
+            }
+            else if (tok.is("join") || in && !tok.is("(")) {
+                return false;
+            }
+            in = tok.is("in");
+        }
+        return selects == 1 && froms == 1;
+    }
+
+    private static String identifier(SqlTokenizer tok) {
+        final int type = tok.next();
+        String text;
+        if (type == SqlTokenizer.WORD) {
+            text = tok.text();
+        }
+        else if (type == SqlTokenizer.QUOTED && tok.end - tok.start >= 2) {
+            final char quote = tok.sql.charAt(tok.start);
+            text = tok.sql.substring(tok.start + 1, tok.end - 1);
+            if (quote != '[') {
+                final String q = String.valueOf(quote);
+                text = text.replace(q + q, q);
+            }
+        }
+        else {
+            return null;
+        }
+        return text.toLowerCase(Locale.US);
+    }
+
+    static String scope(Uri uri) {
+        return "content://" + uri.getAuthority();
+    }
+
+    static String table(Uri uri) {
+        final List<String> segments = uri.getPathSegments();
+        return segments == null || segments.isEmpty() ? "" : segments.get(0);
+    }
+
+    static String key(String method, Uri uri, String[] cols, String where, String[] args) {
+        return key(scope(uri), table(uri), method + ' ' + uri + ' ' + Arrays.toString(cols) + ' ' + where, args);
+    }
+
+    static String key(String scope, String table, String sql, String[] args) {
+        final StringBuilder sb = new StringBuilder(scope.length() + table.length() + sql.length() + 32);
+        sb.append(scope);
+        sb.append('\u0000');
+        sb.append(table);
+        sb.append('\u0000');
+        sb.append(sql);
+        if (args != null) {
+            for (String arg : args) {
+                sb.append('\u0000');
+                sb.append(arg == null ? "\u0001" : arg);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the version a value read now is stored under, or {@link #UNCACHEABLE}
+     * while a transaction has a write open in the scope.  The counters only grow, so
+     * their sum changes whenever any one of them does.
+     */
+    static long version(String scope, String table) {
+        if (totalOpenWrites.get() != 0) {
+            final AtomicInteger open = openWrites.get(scope);
+            if (open != null && open.get() != 0) {
+                return UNCACHEABLE;
+            }
+        }
+        return globalVersion.get() + counter(scope).get() + counter(scope + '\u0000' + table).get();
+    }
+
+    /**
+     * Returns the cached value, which may be null, or {@link #MISS}.
+     */
+    static Object get(String key, long version) {
+        synchronized (entries) {
+            final Entry entry = version == UNCACHEABLE ? null : entries.get(key);
+            if (entry != null) {
+                if (entry.version == version) {
+                    ++hits;
+                    return entry.value == NULL ? null : entry.value;
+                }
+                entries.remove(key);
+                bytes -= entry.size;
+            }
+            ++misses;
+        }
+        return MISS;
+    }
+
+    static void put(String key, long version, Object value) {
+        if (version == UNCACHEABLE) {
+            return;
+        }
+        final int size = ENTRY_OVERHEAD + 2 * key.length() + (value instanceof String ? 2 * ((String)value).length() : 16);
+        synchronized (entries) {
+            final Entry old = entries.put(key, new Entry(version, value == null ? NULL : value, size));
+            if (old != null) {
+                bytes -= old.size;
+            }
+            bytes += size;
+            trim();
+        }
+    }
+
+    /**
+     * Invalidates everything cached for db, for writes made outside SqliteWrapper.
+     */
+    public static void invalidate(SQLiteDatabase db) {
+        final String scope = scope(db);
+        if (scope != null) {
+            written(db, scope, null);
+        }
+    }
+
+    /**
+     * Invalidates everything cached for db and what is known of its tables and
+     * triggers, for schema changes.
+     */
+    public static void invalidateSchema(SQLiteDatabase db) {
+        final String scope = scope(db);
+        if (scope != null) {
+            schemas.remove(scope);
+            written(db, scope, null);
+        }
+    }
+
+    /**
+     * Invalidates what is cached for the table of db, or for all of db if the write
+     * may have changed other tables too.
+     */
+    public static void invalidate(SQLiteDatabase db, String table) {
+        final String scope = scope(db);
+        if (scope == null) {
+            return;
+        }
+        String name = normalize(table);
+        if (name != null) {
+            final Schema schema = schema(db, scope);
+            if (schema.cascades || schema.triggered.contains(name)) {
+                name = null;
+            }
+        }
+        written(db, scope, name);
+    }
+
+    private static void written(SQLiteDatabase db, String scope, String table) {
+        settle();
+        if (db.inTransaction()) {
+            // readers elsewhere see the old rows until the commit, so stop caching until then
+            final Map<String, SQLiteDatabase> scopes = pending.get();
+            if (!scopes.containsKey(scope)) {
+                scopes.put(scope, db);
+                openWrites(scope).incrementAndGet();
+                totalOpenWrites.incrementAndGet();
+            }
+        }
+        else if (table != null) {
+            invalidate(scope, table);
+        }
+        else {
+            invalidate(scope);
+        }
+    }
+
+    /**
+     * Invalidates the scopes the calling thread wrote to inside transactions that have
+     * since ended, and lets them be cached again.
+     */
+    static void settle() {
+        if (totalOpenWrites.get() == 0) {
+            return;
+        }
+        final Map<String, SQLiteDatabase> scopes = pending.get();
+        if (scopes.isEmpty()) {
+            return;
+        }
+        final Iterator<Map.Entry<String, SQLiteDatabase>> iterator = scopes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, SQLiteDatabase> entry = iterator.next();
+            final SQLiteDatabase db = entry.getValue();
+            if (!db.isOpen() || !db.inTransaction()) {
+                // committed or rolled back; bump before reopening so no old value is kept
+                invalidate(entry.getKey());
+                openWrites(entry.getKey()).decrementAndGet();
+                totalOpenWrites.decrementAndGet();
+                iterator.remove();
+            }
+        }
+    }
+
+    static void invalidate(String scope, String table) {
+        if (scope != null) {
+            counter(scope + '\u0000' + table).incrementAndGet();
+        }
+    }
+
+    static void invalidate(String scope) {
+        if (scope != null) {
+            counter(scope).incrementAndGet();
+        }
+    }
+
+    static void invalidateAll() {
+        globalVersion.incrementAndGet();
+    }
+
+    public static long getHits() {
+        synchronized (entries) {
+            return hits;
+        }
+    }
+
+    public static long getMisses() {
+        synchronized (entries) {
+            return misses;
+        }
+    }
+
+    public static int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public static long getBytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    private static AtomicInteger openWrites(String scope) {
+        AtomicInteger open = openWrites.get(scope);
+        if (open == null) {
+            final AtomicInteger created = new AtomicInteger();
+            open = openWrites.putIfAbsent(scope, created);
+            if (open == null) {
+                open = created;
+            }
+        }
+        return open;
+    }
+
+    private static Schema schema(SQLiteDatabase db, String scope) {
+        Schema schema = schemas.get(scope);
+        if (schema == null) {
+            schema = loadSchema(db);
+            schemas.put(scope, schema);
+        }
+        return schema;
+    }
+
+    /**
+     * Reads the tables, the tables with triggers, and whether any foreign key has an
+     * action that writes to another table.  If that fails nothing is cached and every
+     * write invalidates the whole scope.
+     */
+    private static Schema loadSchema(SQLiteDatabase db) {
+        final Schema schema = new Schema();
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("SELECT type, tbl_name, sql FROM sqlite_master WHERE type IN ('table', 'trigger')", null);
+            while (cursor != null && cursor.moveToNext()) {
+                final String table = cursor.getString(1).toLowerCase(Locale.US);
+                if ("trigger".equals(cursor.getString(0))) {
+                    schema.triggered.add(table);
+                }
+                else {
+                    schema.tables.add(table);
+                    final String sql = cursor.getString(2);
+                    if (sql != null) {
+                        final String upper = sql.toUpperCase(Locale.US);
+                        if (upper.contains("CASCADE") || upper.contains("SET NULL") || upper.contains("SET DEFAULT")) {
+                            schema.cascades = true;
+                        }
+                    }
+                }
+            }
+        }
+        catch (SQLiteException e) {
+            Logger.warn(ResultCache.class, "loadSchema: ", e);
+            schema.tables.clear();
+            schema.cascades = true;
+        }
+        finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return schema;
+    }
+
+    private static AtomicLong counter(String name) {
+        AtomicLong counter = versions.get(name);
+        if (counter == null) {
+            final AtomicLong created = new AtomicLong();
+            counter = versions.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    private static void trim() {
+        final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (bytes > budget && iterator.hasNext()) {
+            bytes -= iterator.next().getValue().size;
+            iterator.remove();
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package com.bartonsoft.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import com.bartonsoft.logger.Logger;
+import com.bartonsoft.logger.MappedFileSink;
+
+/**
+ * Records {@link SqliteWrapper} operations that take longer than a per-operation
+ * threshold to a bounded set of memory-mapped segment files that survive the
+ * process, so they can be pulled from field devices in release builds.
+ * <p>
+ * A record holds the time, operation, duration, calling thread and call site, the
+ * statement's {@link SqlFingerprint} instead of its text, the bound arguments with
+ * their values redacted, and for database statements the query plan, which is read
+ * once per fingerprint through the {@link QueryPlanRegistry}.  Until {@link #start}
+ * is called the only cost is one volatile read per operation.
+ * <p>
+ * Queries that return a cursor are checked when it is closed, and their duration
+ * is that of creating the cursor plus the window fills made while the caller read
+ * it, since SQLite only runs a query as its rows are read.
+ * <p>
+ * A statement whose plan is not known yet is explained on a background thread,
+ * which then writes the record, so a slow query on the UI thread is not followed
+ * by a second one.  If too many records are waiting for a plan they are written
+ * without one.
+ */
+public final class SlowQueryLog {
+    public enum Operation {
+        QUERY(30),
+        INSERT(50),
+        UPDATE(50),
+        DELETE(50),
+        EXEC(100),
+        BULK_INSERT(1000),
+        PROVIDER_QUERY(100),
+        PROVIDER_WRITE(200);
+
+        final long defaultMillis;
+
+        Operation(long defaultMillis) {
+            this.defaultMillis = defaultMillis;
+        }
+    }
+
+    private static final String NAME = "slow-queries";
+    private static final int MAX_ARGS = 16;
+    private static final String THIS_PACKAGE = SlowQueryLog.class.getPackage().getName() + '.';
+    private static final int MAX_WAITING_PLANS = 64;
+
+    private static final Object lock = new Object();
+    private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+    private static volatile MappedFileSink sink;
+    private static volatile long[] thresholds;
+    private static final ThreadPoolExecutor planner = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(MAX_WAITING_PLANS), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "slow-query-plans");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /**
+     * A query whose cursor is still open, checked against its threshold when an
+     * {@link InstrumentedCursor} is closed.
+     */
+    static final class Watch {
+        private final Operation op;
+        private final SQLiteDatabase db;
+        private final Uri uri;
+        private final String sql;
+        private final Object[] args;
+        private final long queryNanos;
+
+        Watch(Operation op, SQLiteDatabase db, Uri uri, String sql, Object[] args, long queryNanos) {
+            this.op = op;
+            this.db = db;
+            this.uri = uri;
+            this.sql = sql;
+            // the caller may reuse its array once the call returns
+            this.args = args == null ? null : args.clone();
+            this.queryNanos = queryNanos;
+        }
+
+        void closed(long fillNanos) {
+            final long nanos = queryNanos + fillNanos;
+            if (isSlow(op, nanos)) {
+                if (uri != null) {
+                    record(op, uri, sql, args, nanos);
+                }
+                else {
+                    record(op, db, sql, args, nanos);
+                }
+            }
+        }
+    }
+
+    static {
+        planner.allowCoreThreadTimeOut(true);
+        final Operation[] ops = Operation.values();
+        final long[] t = new long[ops.length];
+        for (int i = 0; i < ops.length; ++i) {
+            t[i] = ops[i].defaultMillis * 1000000L;
+        }
+        thresholds = t;
+    }
+
+    private SlowQueryLog() {
+    }
+
+    /**
+     * Starts recording to dir/slow-queries-0.log .. slow-queries-(numSegments-1).log,
+     * continuing after any records already there.
+     */
+    public static void start(File dir, int segmentSize, int numSegments) throws IOException {
+        synchronized (lock) {
+            sink = new MappedFileSink(dir, NAME, segmentSize, numSegments);
+        }
+    }
+
+    public static void stop() {
+        synchronized (lock) {
+            final MappedFileSink s = sink;
+            sink = null;
+            if (s != null) {
+                s.sync();
+            }
+        }
+    }
+
+    public static boolean isStarted() {
+        return sink != null;
+    }
+
+    public static void setThreshold(Operation op, long millis) {
+        synchronized (lock) {
+            final long[] t = thresholds.clone();
+            t[op.ordinal()] = millis * 1000000L;
+            thresholds = t;
+        }
+    }
+
+    public static long getThreshold(Operation op) {
+        return thresholds[op.ordinal()] / 1000000L;
+    }
+
+    /**
+     * Returns the records written so far, oldest first, or an empty list if not started.
+     */
+    public static List<String> readRecords() throws IOException {
+        final MappedFileSink s = sink;
+        return s == null ? Collections.<String>emptyList() : s.readLines();
+    }
+
+    /**
+     * Returns true if recording is on and the operation crossed its threshold; the
+     * caller then builds the statement and calls one of the record methods.
+     */
+    public static boolean isSlow(Operation op, long nanos) {
+        return sink != null && nanos >= thresholds[op.ordinal()];
+    }
+
+    /**
+     * Checks a database query when its cursor is closed, wrapping it in an
+     * {@link InstrumentedCursor} unless it already is one.  A null cursor is checked at once.
+     */
+    static Cursor watch(Cursor cursor, SQLiteDatabase db, String sql, Object[] args, long queryNanos) {
+        return watch(cursor, new Watch(Operation.QUERY, db, null, sql, args, queryNanos));
+    }
+
+    static Cursor watch(Cursor cursor, Uri uri, String selection, Object[] args, long queryNanos) {
+        return watch(cursor, new Watch(Operation.PROVIDER_QUERY, null, uri, selection, args, queryNanos));
+    }
+
+    private static Cursor watch(Cursor cursor, Watch watch) {
+        if (cursor == null) {
+            watch.closed(0);
+            return null;
+        }
+        final InstrumentedCursor instrumented =
+            cursor instanceof InstrumentedCursor ? (InstrumentedCursor)cursor : new InstrumentedCursor(cursor, null);
+        instrumented.watch(watch);
+        return instrumented;
+    }
+
+    /**
+     * Records a database statement; db is used to explain it, and may be null.  The
+     * record is written at once if the plan is known or db is null, and otherwise
+     * once the plan has been read on a background thread.
+     */
+    public static void record(Operation op, final SQLiteDatabase db, final String sql, Object[] args, long nanos) {
+        final StringBuilder sb = begin(op, nanos);
+        // redacted now, the caller may reuse its array
+        final StringBuilder argText = new StringBuilder();
+        appendArgs(argText, args);
+        final QueryPlanRegistry.Plan known = db != null ? QueryPlanRegistry.find(sql) : null;
+        if (db == null || known != null) {
+            finish(sb, known != null ? known.getFingerprint() : SqlFingerprint.of(sql), argText, known);
+            return;
+        }
+        try {
+            planner.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final QueryPlanRegistry.Plan plan = QueryPlanRegistry.lookup(db, sql);
+                    finish(sb, plan.getFingerprint(), argText, plan);
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            finish(sb, SqlFingerprint.of(sql), argText, null);
+        }
+    }
+
+    private static void finish(StringBuilder sb, SqlFingerprint fingerprint, CharSequence argText,
+            QueryPlanRegistry.Plan p) {
+        sb.append(" fp = ");
+        sb.append(fingerprint.getId());
+        sb.append(", sql = ");
+        sb.append(fingerprint.getText());
+        sb.append(argText);
+        final String[] plan = p != null ? p.getDetails() : null;
+        if (plan != null) {
+            sb.append(", flags = ");
+            QueryPlanRegistry.appendFlags(sb, p.getFlags());
+            sb.append(", plan = [");
+            for (int i = 0; i < plan.length; ++i) {
+                if (i != 0) {
+                    sb.append(" | ");
+                }
+                sb.append(plan[i]);
+            }
+            sb.append(']');
+        }
+        write(sb);
+    }
+
+    /**
+     * Records a content provider operation; numeric path segments of the uri and the
+     * literals of the selection are redacted like bound arguments.
+     */
+    public static void record(Operation op, Uri uri, String selection, Object[] args, long nanos) {
+        final StringBuilder sb = begin(op, nanos);
+        sb.append(" uri = ");
+        appendRedacted(sb, uri);
+        if (selection != null) {
+            sb.append(", selection = ");
+            sb.append(SqlFingerprint.of(selection).getText());
+        }
+        appendArgs(sb, args);
+        write(sb);
+    }
+
+    /**
+     * Appends the uri with each numeric path segment, usually a row id, replaced by #.
+     */
+    static void appendRedacted(StringBuilder sb, Uri uri) {
+        final String text = uri.toString();
+        final int len = text.length();
+        for (int i = 0; i < len; ++i) {
+            final char c = text.charAt(i);
+            if (c >= '0' && c <= '9' && i > 0 && text.charAt(i - 1) == '/') {
+                sb.append('#');
+                while (i + 1 < len && text.charAt(i + 1) >= '0' && text.charAt(i + 1) <= '9') {
+                    ++i;
+                }
+            }
+            else {
+                sb.append(c);
+            }
+        }
+    }
+
+    private static StringBuilder begin(Operation op, long nanos) {
+        final StringBuilder sb = new StringBuilder(256);
+        synchronized (dateFormat) {
+            sb.append(dateFormat.format(new Date()));
+        }
+        sb.append(' ');
+        sb.append(op.name());
+        sb.append(' ');
+        sb.append(nanos / 1000000L);
+        sb.append('.');
+        final long frac = nanos / 1000L % 1000L;
+        sb.append(frac < 10 ? "00" : frac < 100 ? "0" : "");
+        sb.append(frac);
+        sb.append("ms thread = ");
+        sb.append(Thread.currentThread().getName());
+        final StackTraceElement caller = findCaller();
+        if (caller != null) {
+            sb.append(", caller = ");
+            sb.append(caller.getClassName());
+            sb.append('.');
+            sb.append(caller.getMethodName());
+            sb.append(':');
+            sb.append(caller.getLineNumber());
+        }
+        sb.append(',');
+        return sb;
+    }
+
+    /**
+     * Returns the first frame outside this package, which is where the app made the call.
+     */
+    private static StackTraceElement findCaller() {
+        for (StackTraceElement frame : new Throwable().getStackTrace()) {
+            if (!frame.getClassName().startsWith(THIS_PACKAGE)) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Appends the arguments with only their kind and length kept: null, a number of n
+     * digits as #n, and any other string of n characters as $n.
+     */
+    private static void appendArgs(StringBuilder sb, Object[] args) {
+        if (args == null || args.length == 0) {
+            return;
+        }
+        sb.append(", args = [");
+        final int num = Math.min(args.length, MAX_ARGS);
+        for (int i = 0; i < num; ++i) {
+            if (i != 0) {
+                sb.append(", ");
+            }
+            final Object arg = args[i];
+            if (arg == null) {
+                sb.append("null");
+            }
+            else {
+                final String text = arg.toString();
+                sb.append(arg instanceof Number || isNumeric(text) ? '#' : '$');
+                sb.append(text.length());
+            }
+        }
+        if (args.length > num) {
+            sb.append(", ...");
+            sb.append(args.length - num);
+            sb.append(" more");
+        }
+        sb.append(']');
+    }
+
+    private static boolean isNumeric(String text) {
+        final int len = text.length();
+        if (len == 0) {
+            return false;
+        }
+        for (int i = 0; i < len; ++i) {
+            final char c = text.charAt(i);
+            if ((c < '0' || c > '9') && !(i == 0 && c == '-') && c != '.') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void write(StringBuilder sb) {
+        final MappedFileSink s = sink;
+        if (s != null) {
+            s.write(sb);
+        }
+        if (Logger.isWarnEnabled(SqliteWrapper.class)) {
+            Logger.warn(SqliteWrapper.class, "slow query: " + sb);
+        }
+    }
+}
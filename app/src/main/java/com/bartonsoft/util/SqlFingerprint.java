@@ -0,0 +1,213 @@
+package com.bartonsoft.util;
+
+import java.util.Locale;
+
+/**
+ * The shape of a SQL statement with its values taken out, so that statements that
+ * differ only in their literals or bind parameters compare equal.  Words are upper
+ * cased, literals and parameters become ?, lists of nothing but values such as
+ * IN (1, 2, 3) or the rows of a multi-row VALUES become (...), comments are dropped
+ * and spacing is normalized.  Quoted identifiers are kept as written.
+ * <pre>
+ * select * from Msg where thread = 12 and type in (1,2)  -- inbox
+ * SELECT * FROM MSG WHERE THREAD = ? AND TYPE IN (...)
+ * </pre>
+ */
+public final class SqlFingerprint {
+    private static final String LIST = "(...)";
+
+    private final String text;
+    private final int literals;
+    private String id;
+
+    private SqlFingerprint(String text, int literals) {
+        this.text = text;
+        this.literals = literals;
+    }
+
+    public static SqlFingerprint of(String sql) {
+        final SqlTokenizer tok = new SqlTokenizer(sql);
+        final StringBuilder sb = new StringBuilder(sql.length());
+        int literals = 0;
+        // whether the previous token ends an operand, so that a following sign is binary
+        boolean prevOperand = false;
+        boolean prevFunction = false;
+        int signAt = -1;
+        boolean afterList = false;
+        while (tok.next() != SqlTokenizer.END) {
+            final int type = tok.type;
+            if (tok.is("(")) {
+                final int open = tok.start;
+                final int values = skipValueList(tok);
+                if (values >= 0) {
+                    literals += values;
+                    if (afterList && sb.charAt(sb.length() - 1) == ',') {
+                        // the rows of a multi-row VALUES collapse into one
+                        sb.setLength(sb.length() - 1);
+                    } else {
+                        appendSpace(sb, "(", prevFunction);
+                        sb.append(LIST);
+                    }
+                    afterList = true;
+                    prevOperand = true;
+                    prevFunction = false;
+                    signAt = -1;
+                    continue;
+                }
+                tok.reset(open);
+                tok.next();
+            }
+
+            final boolean value = type == SqlTokenizer.STRING || type == SqlTokenizer.NUMBER
+                    || type == SqlTokenizer.BLOB || type == SqlTokenizer.PARAM;
+            if (value) {
+                if (type != SqlTokenizer.PARAM) {
+                    ++literals;
+                }
+                if (type == SqlTokenizer.NUMBER && signAt >= 0) {
+                    // -1 and ? are the same shape
+                    sb.setLength(signAt);
+                }
+                appendSpace(sb, "?", false);
+                sb.append('?');
+                signAt = -1;
+                prevOperand = true;
+            } else {
+                final String text = type == SqlTokenizer.WORD ? tok.text().toUpperCase(Locale.US) : tok.text();
+                final int mark = sb.length();
+                appendSpace(sb, text, prevFunction);
+                signAt = !prevOperand && (text.equals("-") || text.equals("+")) ? mark : -1;
+                sb.append(text);
+                prevOperand = type == SqlTokenizer.QUOTED || text.equals(")")
+                        || (type == SqlTokenizer.WORD && !isKeyword(text));
+            }
+            prevFunction = type == SqlTokenizer.QUOTED || (type == SqlTokenizer.WORD && prevOperand);
+            afterList = afterList && tok.is(",");
+        }
+        return new SqlFingerprint(sb.toString(), literals);
+    }
+
+    /**
+     * The normalized statement.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * The number of literals the statement had embedded instead of bound as parameters;
+     * more than 0 usually means SQL built by concatenation, which defeats statement
+     * caching and floods any per-statement registry.
+     */
+    public int getLiterals() {
+        return literals;
+    }
+
+    /**
+     * A short stable id of the text, 16 hex digits of its 64-bit FNV-1a hash.
+     */
+    public String getId() {
+        String s = id;
+        if (s == null) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < text.length(); ++i) {
+                hash ^= text.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            s = String.format(Locale.US, "%016x", hash);
+            id = s;
+        }
+        return s;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof SqlFingerprint && ((SqlFingerprint)o).text.equals(text);
+    }
+
+    @Override
+    public int hashCode() {
+        return text.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    /**
+     * With the tokenizer just past an opening parenthesis, skips a list made only of
+     * literals, parameters and commas and returns the number of literals in it, or -1
+     * if the parenthesis holds anything else.
+     */
+    private static int skipValueList(SqlTokenizer tok) {
+        int literals = 0;
+        boolean expectValue = true;
+        while (true) {
+            final int type = tok.next();
+            if (expectValue) {
+                if (type == SqlTokenizer.PUNCT && (tok.is("-") || tok.is("+"))) {
+                    if (tok.next() != SqlTokenizer.NUMBER) {
+                        return -1;
+                    }
+                    ++literals;
+                } else if (type == SqlTokenizer.STRING || type == SqlTokenizer.NUMBER || type == SqlTokenizer.BLOB) {
+                    ++literals;
+                } else if (type == SqlTokenizer.WORD && tok.is("NULL")) {
+                    ++literals;
+                } else if (type != SqlTokenizer.PARAM) {
+                    return -1;
+                }
+                expectValue = false;
+            } else if (tok.is(",")) {
+                expectValue = true;
+            } else if (tok.is(")")) {
+                return literals;
+            } else {
+                return -1;
+            }
+        }
+    }
+
+    private static void appendSpace(StringBuilder sb, String next, boolean prevFunction) {
+        final int len = sb.length();
+        if (len == 0) {
+            return;
+        }
+        final char last = sb.charAt(len - 1);
+        if (last == '(' || last == '.' || next.equals(")") || next.equals(",") || next.equals(".")) {
+            return;
+        }
+        // function calls and column lists keep their parenthesis attached
+        if (next.equals("(") && prevFunction) {
+            return;
+        }
+        sb.append(' ');
+    }
+
+    private static boolean isKeyword(String word) {
+        switch (word.length()) {
+            case 2:
+                return word.equals("OR") || word.equals("IS") || word.equals("IN") || word.equals("BY")
+                        || word.equals("ON") || word.equals("AS");
+            case 3:
+                return word.equals("AND") || word.equals("NOT") || word.equals("SET");
+            case 4:
+                return word.equals("WHEN") || word.equals("THEN") || word.equals("ELSE") || word.equals("LIKE")
+                        || word.equals("GLOB") || word.equals("FROM") || word.equals("INTO") || word.equals("JOIN")
+                        || word.equals("CASE");
+            case 5:
+                return word.equals("WHERE") || word.equals("LIMIT") || word.equals("MATCH");
+            case 6:
+                return word.equals("SELECT") || word.equals("OFFSET") || word.equals("VALUES")
+                        || word.equals("HAVING") || word.equals("REGEXP") || word.equals("ESCAPE")
+                        || word.equals("EXISTS");
+            case 7:
+                return word.equals("BETWEEN");
+            case 9:
+                return word.equals("RETURNING");
+            default:
+                return false;
+        }
+    }
+}
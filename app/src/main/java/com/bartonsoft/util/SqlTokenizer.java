@@ -0,0 +1,186 @@
+package com.bartonsoft.util;
+
+/**
+ * Splits SQLite SQL into tokens without allocating: after {@link #next()} the token
+ * is described by {@link #type}, {@link #start} and {@link #end}.  Whitespace and
+ * comments are skipped.  Nothing is validated; unterminated strings and comments
+ * run to the end of the text.
+ */
+final class SqlTokenizer {
+    static final int END = 0;
+    static final int WORD = 1;
+    static final int QUOTED = 2;
+    static final int STRING = 3;
+    static final int NUMBER = 4;
+    static final int BLOB = 5;
+    static final int PARAM = 6;
+    static final int PUNCT = 7;
+
+    private static final String TWO_CHAR_OPS = "<=>===!=<>||<<>>";
+
+    final String sql;
+    int type;
+    int start;
+    int end;
+    private final int length;
+    private int pos;
+
+    SqlTokenizer(String sql) {
+        this.sql = sql;
+        this.length = sql.length();
+    }
+
+    int position() {
+        return pos;
+    }
+
+    void reset(int position) {
+        pos = position;
+    }
+
+    int next() {
+        skipSpaceAndComments();
+        start = pos;
+        if (pos >= length) {
+            end = pos;
+            return type = END;
+        }
+        final char c = sql.charAt(pos);
+        if (c == '\'') {
+            pos = skipQuoted(pos, '\'');
+            type = STRING;
+        } else if (c == '"' || c == '`') {
+            pos = skipQuoted(pos, c);
+            type = QUOTED;
+        } else if (c == '[') {
+            final int close = sql.indexOf(']', pos + 1);
+            pos = close < 0 ? length : close + 1;
+            type = QUOTED;
+        } else if ((c == 'x' || c == 'X') && pos + 1 < length && sql.charAt(pos + 1) == '\'') {
+            pos = skipQuoted(pos + 1, '\'');
+            type = BLOB;
+        } else if (isDigit(c) || (c == '.' && pos + 1 < length && isDigit(sql.charAt(pos + 1)))) {
+            pos = skipNumber(pos);
+            type = NUMBER;
+        } else if (c == '?') {
+            ++pos;
+            while (pos < length && isDigit(sql.charAt(pos))) {
+                ++pos;
+            }
+            type = PARAM;
+        } else if ((c == ':' || c == '@' || c == '$') && pos + 1 < length && isWordPart(sql.charAt(pos + 1))) {
+            ++pos;
+            while (pos < length && isWordPart(sql.charAt(pos))) {
+                ++pos;
+            }
+            type = PARAM;
+        } else if (isWordStart(c)) {
+            ++pos;
+            while (pos < length && isWordPart(sql.charAt(pos))) {
+                ++pos;
+            }
+            type = WORD;
+        } else {
+            pos += isTwoCharOp(pos) ? 2 : 1;
+            type = PUNCT;
+        }
+        end = pos;
+        return type;
+    }
+
+    /**
+     * Returns true if the current token is the given word or punctuation, ignoring case.
+     */
+    boolean is(String text) {
+        return (type == WORD || type == PUNCT) && end - start == text.length()
+                && sql.regionMatches(true, start, text, 0, text.length());
+    }
+
+    String text() {
+        return sql.substring(start, end);
+    }
+
+    private void skipSpaceAndComments() {
+        while (pos < length) {
+            final char c = sql.charAt(pos);
+            if (Character.isWhitespace(c)) {
+                ++pos;
+            } else if (c == '-' && pos + 1 < length && sql.charAt(pos + 1) == '-') {
+                final int eol = sql.indexOf('\n', pos);
+                pos = eol < 0 ? length : eol + 1;
+            } else if (c == '/' && pos + 1 < length && sql.charAt(pos + 1) == '*') {
+                final int close = sql.indexOf("*/", pos + 2);
+                pos = close < 0 ? length : close + 2;
+            } else {
+                break;
+            }
+        }
+    }
+
+    private int skipQuoted(int from, char quote) {
+        int i = from + 1;
+        while (i < length) {
+            if (sql.charAt(i) == quote) {
+                // a doubled quote is an escaped one
+                if (i + 1 < length && sql.charAt(i + 1) == quote) {
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            ++i;
+        }
+        return length;
+    }
+
+    private int skipNumber(int from) {
+        int i = from;
+        if (sql.charAt(i) == '0' && i + 1 < length && (sql.charAt(i + 1) == 'x' || sql.charAt(i + 1) == 'X')) {
+            i += 2;
+            while (i < length && Character.digit(sql.charAt(i), 16) >= 0) {
+                ++i;
+            }
+            return i;
+        }
+        while (i < length && (isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+            ++i;
+        }
+        if (i < length && (sql.charAt(i) == 'e' || sql.charAt(i) == 'E')) {
+            int j = i + 1;
+            if (j < length && (sql.charAt(j) == '+' || sql.charAt(j) == '-')) {
+                ++j;
+            }
+            if (j < length && isDigit(sql.charAt(j))) {
+                i = j;
+                while (i < length && isDigit(sql.charAt(i))) {
+                    ++i;
+                }
+            }
+        }
+        return i;
+    }
+
+    private boolean isTwoCharOp(int at) {
+        if (at + 1 >= length) {
+            return false;
+        }
+        for (int i = 0; i < TWO_CHAR_OPS.length(); i += 2) {
+            if (sql.charAt(at) == TWO_CHAR_OPS.charAt(i) && sql.charAt(at + 1) == TWO_CHAR_OPS.charAt(i + 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isWordStart(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c > 0x7f;
+    }
+
+    private static boolean isWordPart(char c) {
+        return isWordStart(c) || isDigit(c) || c == '$';
+    }
+}
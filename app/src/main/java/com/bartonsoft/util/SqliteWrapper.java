@@ -17,14 +17,9 @@
 
 package com.bartonsoft.util;
 
-import static java.util.regex.Pattern.CASE_INSENSITIVE;
-
 import java.lang.reflect.Field;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Iterator;
 
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
@@ -35,6 +30,7 @@ import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDiskIOException;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteFullException;
 import android.database.sqlite.SQLiteProgram;
@@ -42,30 +38,24 @@ import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Build;
 import android.os.RemoteException;
-import android.os.SystemClock;
 
+import com.bartonsoft.logger.BinaryLog;
 import com.bartonsoft.logger.Logger;
 
 public final class SqliteWrapper {
-    private static HashSet<String> queryMap;
     private static Field bindArgs;
-    private static Pattern updateOrDeletePat;
-    private static Pattern spacePat;
-    private static Pattern wherePat;
-    private static Pattern unequalPat;
-    private static Pattern equalPat;
     private static final String[] countCol = { "COUNT(*) AS count" };
+    private static final String[] CONFLICT_VALUES = { "", " OR ROLLBACK", " OR ABORT", " OR FAIL", " OR IGNORE", " OR REPLACE" };
     private static final String SQLITE_EXCEPTION_DETAIL_MESSAGE = "unable to open database file";
+    // forEachPage reads the key through this alias, which works for rowid and its aliases too
+    private static final String PAGE_KEY = "__page_key";
+    private static final String QUERY_TEMPLATE =
+        "query: query time = {}us, table = {}, where = <{}>";
+    private static final String RAW_QUERY_TEMPLATE =
+        "rawQuery: query time = {}us, query = {}";
 
     static {
         if (Logger.IS_DEBUG_ENABLED) {
-            queryMap = new HashSet<String>();
-            updateOrDeletePat = Pattern.compile("^\\s*(?:UPDATE|DELETE FROM)\\s+([^\\s]+)\\s+(?:WHERE\\s+(.+))?", CASE_INSENSITIVE);
-            spacePat = Pattern.compile("\\s+");
-            wherePat = Pattern.compile("^(.* where )(.*)$", CASE_INSENSITIVE);
-            unequalPat = Pattern.compile("!=\\s*[-'_\\.\\p{Alnum}]+| not in\\s*\\([^)]+\\)\\s*", CASE_INSENSITIVE);
-            equalPat = Pattern.compile("\\s*(=|==|>\\s*=|<\\s*=|>|<)\\s*[-'_\\.\\p{Alnum}]+| in\\s*\\([-'_\\.,\\s\\p{Alnum}]+\\)", CASE_INSENSITIVE);
-
             try {
                 bindArgs = SQLiteProgram.class.getDeclaredField("mBindArgs");
                 bindArgs.setAccessible(true);
@@ -97,25 +87,37 @@ public final class SqliteWrapper {
 
     public static Cursor query(Context context, ContentResolver resolver, Uri uri, String[] projection,
             String selection, String[] selectionArgs, String sortOrder) {
-        final long start;
-        final String params;
-        if (Logger.IS_DEBUG_ENABLED) {
-            params = "uri = " + uri + ", cols = " + Arrays.toString(projection) + ", selection = <"
+        final boolean isDebug = Logger.isDebugEnabled(SqliteWrapper.class);
+        String params = null;
+        if (isDebug) {
+            params = "uri = " + uri + ", cols = " + truncate(projection) + ", selection = <"
                     + selection + ">, args = " + truncate(selectionArgs) + ", sort = " + sortOrder;
             Logger.debug(SqliteWrapper.class, "query: " + params);
-	        start = SystemClock.uptimeMillis();
         }
 
         try {
-            final Cursor cursor = resolver != null ? resolver.query(uri, projection, selection,
-                    selectionArgs, sortOrder) : null;
+            Cursor cursor;
+            final long queryTime;
+            Logger.beginSpan("provider.query");
+            try {
+                cursor = resolver != null ? resolver.query(uri, projection, selection, selectionArgs, sortOrder) : null;
+            }
+            finally {
+                queryTime = Logger.endSpan();
+            }
 
-            if (Logger.IS_DEBUG_ENABLED) {
-                final long queryTime = SystemClock.uptimeMillis() - start;
-                final String count = cursor == null ? "null" : Integer.toString(cursor.getCount());
-                final long fillTime = SystemClock.uptimeMillis() - (start + queryTime);
-                Logger.debug(SqliteWrapper.class, "query: query time = " + queryTime + "ms, fill time = " + fillTime
-                        + "ms, " + params + ", returning " + count);
+            if (isDebug) {
+                Logger.debug(SqliteWrapper.class, "query: query time = " + micros(queryTime) + ", " + params
+                        + (cursor == null ? ", returning null" : ""));
+                if (cursor != null) {
+                    cursor = new InstrumentedCursor(cursor, "query: uri = " + uri);
+                }
+            }
+            if (QueryMetrics.isEnabled()) {
+                cursor = QueryMetrics.measure(cursor, SlowQueryLog.Operation.PROVIDER_QUERY, uri, selection, queryTime);
+            }
+            if (SlowQueryLog.isStarted()) {
+                cursor = SlowQueryLog.watch(cursor, uri, selection, selectionArgs, queryTime);
             }
 
             return cursor;
@@ -130,23 +132,36 @@ public final class SqliteWrapper {
 
     public static Cursor queryOrThrow(Context context, ContentResolver resolver, Uri uri,
             String[] projection, String selection, String[] selectionArgs, String sortOrder) {
-        final long start;
-        final String params;
-        if (Logger.IS_DEBUG_ENABLED) {
-            params = "uri = " + uri + ", cols = " + Arrays.toString(projection) + ", selection = <"
+        final boolean isDebug = Logger.isDebugEnabled(SqliteWrapper.class);
+        String params = null;
+        if (isDebug) {
+            params = "uri = " + uri + ", cols = " + truncate(projection) + ", selection = <"
                     + selection + ">, args = " + truncate(selectionArgs) + ", sort = " + sortOrder;
             Logger.debug(SqliteWrapper.class, "queryOrThrow: " + params);
-	        start = SystemClock.uptimeMillis();
         }
 
-        final Cursor cursor = resolver.query(uri, projection, selection, selectionArgs, sortOrder);
+        Cursor cursor;
+        final long queryTime;
+        Logger.beginSpan("provider.query");
+        try {
+            cursor = resolver.query(uri, projection, selection, selectionArgs, sortOrder);
+        }
+        finally {
+            queryTime = Logger.endSpan();
+        }
 
-        if (Logger.IS_DEBUG_ENABLED) {
-            final long queryTime = SystemClock.uptimeMillis() - start;
-            final String count = cursor == null ? "null" : Integer.toString(cursor.getCount());
-            final long fillTime = SystemClock.uptimeMillis() - (start + queryTime);
-            Logger.debug(SqliteWrapper.class, "queryOrThrow: query time = " + queryTime + "ms, fill time = "
-                    + fillTime + "ms, " + params + ", returning " + count);
+        if (isDebug) {
+            Logger.debug(SqliteWrapper.class, "queryOrThrow: query time = " + micros(queryTime) + ", " + params
+                    + (cursor == null ? ", returning null" : ""));
+            if (cursor != null) {
+                cursor = new InstrumentedCursor(cursor, "queryOrThrow: uri = " + uri);
+            }
+        }
+        if (QueryMetrics.isEnabled()) {
+            cursor = QueryMetrics.measure(cursor, SlowQueryLog.Operation.PROVIDER_QUERY, uri, selection, queryTime);
+        }
+        if (SlowQueryLog.isStarted()) {
+            cursor = SlowQueryLog.watch(cursor, uri, selection, selectionArgs, queryTime);
         }
 
         return cursor;
@@ -154,19 +169,36 @@ public final class SqliteWrapper {
 
     public static int update(Context context, ContentResolver resolver, Uri uri, ContentValues values,
             String where, String[] selectionArgs) {
-        final long start;
-        if (Logger.IS_DEBUG_ENABLED) {
+        final boolean isDebug = Logger.isDebugEnabled(SqliteWrapper.class);
+        if (isDebug) {
             Logger.debug(SqliteWrapper.class, "update: uri = " + uri + ", where = <" + where + ">, args = "
                     + truncate(selectionArgs) + ", values = " + values);
-	        start = SystemClock.uptimeMillis();
         }
 
         try {
-            final int rows = resolver.update(uri, values, where, selectionArgs);
+            final int rows;
+            final long time;
+            Logger.beginSpan("provider.update");
+            try {
+                rows = resolver.update(uri, values, where, selectionArgs);
+            }
+            finally {
+                time = Logger.endSpan();
+            }
+            if (SlowQueryLog.isSlow(SlowQueryLog.Operation.PROVIDER_WRITE, time)) {
+                SlowQueryLog.record(SlowQueryLog.Operation.PROVIDER_WRITE, uri, where, selectionArgs, time);
+            }
+            if (QueryMetrics.isEnabled()) {
+                QueryMetrics.record(SlowQueryLog.Operation.PROVIDER_WRITE, uri, where, time, rows);
+            }
+            if (ResultCache.isEnabled()) {
+                // other uris of the authority are often views of the same table
+                ResultCache.invalidate(ResultCache.scope(uri));
+            }
 
-            if (Logger.IS_DEBUG_ENABLED) {
-                Logger.debug(SqliteWrapper.class, "update: time = " + (SystemClock.uptimeMillis() - start)
-                        + "ms, uri = " + uri + ", where = <" + where + ">, args = "
+            if (isDebug) {
+                Logger.debug(SqliteWrapper.class, "update: time = " + micros(time)
+                        + ", uri = " + uri + ", where = <" + where + ">, args = "
                         + truncate(selectionArgs) + ", values = " + values + ", returning " + rows);
             }
 
@@ -180,19 +212,35 @@ public final class SqliteWrapper {
     }
 
     public static int delete(Context context, ContentResolver resolver, Uri uri, String where, String[] selectionArgs) {
-        final long start;
-        if (Logger.IS_DEBUG_ENABLED) {
+        final boolean isDebug = Logger.isDebugEnabled(SqliteWrapper.class);
+        if (isDebug) {
             Logger.debug(SqliteWrapper.class, "delete: uri = " + uri + ", where = <" + where + ">, args = "
                     + truncate(selectionArgs));
-	        start = SystemClock.uptimeMillis();
         }
 
         try {
-            final int rows = resolver.delete(uri, where, selectionArgs);
+            final int rows;
+            final long time;
+            Logger.beginSpan("provider.delete");
+            try {
+                rows = resolver.delete(uri, where, selectionArgs);
+            }
+            finally {
+                time = Logger.endSpan();
+            }
+            if (SlowQueryLog.isSlow(SlowQueryLog.Operation.PROVIDER_WRITE, time)) {
+                SlowQueryLog.record(SlowQueryLog.Operation.PROVIDER_WRITE, uri, where, selectionArgs, time);
+            }
+            if (QueryMetrics.isEnabled()) {
+                QueryMetrics.record(SlowQueryLog.Operation.PROVIDER_WRITE, uri, where, time, rows);
+            }
+            if (ResultCache.isEnabled()) {
+                ResultCache.invalidate(ResultCache.scope(uri));
+            }
 
-            if (Logger.IS_DEBUG_ENABLED) {
-                Logger.debug(SqliteWrapper.class, "delete: time = " + (SystemClock.uptimeMillis() - start)
-                        + "ms, uri = " + uri + ", where = <" + where + ">, args = "
+            if (isDebug) {
+                Logger.debug(SqliteWrapper.class, "delete: time = " + micros(time)
+                        + ", uri = " + uri + ", where = <" + where + ">, args = "
                         + truncate(selectionArgs) + ", returning " + rows);
             }
 
@@ -206,18 +254,34 @@ public final class SqliteWrapper {
     }
 
     public static Uri insert(Context context, ContentResolver resolver, Uri uri, ContentValues values) {
-        final long start;
-        if (Logger.IS_DEBUG_ENABLED) {
+        final boolean isDebug = Logger.isDebugEnabled(SqliteWrapper.class);
+        if (isDebug) {
             Logger.debug(SqliteWrapper.class, "insert: uri = " + uri + ", values = " + values);
-	        start = SystemClock.uptimeMillis();
         }
 
         try {
-            final Uri ret = resolver.insert(uri, values);
+            final Uri ret;
+            final long time;
+            Logger.beginSpan("provider.insert");
+            try {
+                ret = resolver.insert(uri, values);
+            }
+            finally {
+                time = Logger.endSpan();
+            }
+            if (SlowQueryLog.isSlow(SlowQueryLog.Operation.PROVIDER_WRITE, time)) {
+                SlowQueryLog.record(SlowQueryLog.Operation.PROVIDER_WRITE, uri, null, null, time);
+            }
+            if (QueryMetrics.isEnabled()) {
+                QueryMetrics.record(SlowQueryLog.Operation.PROVIDER_WRITE, uri, null, time, ret != null ? 1 : 0);
+            }
+            if (ResultCache.isEnabled()) {
+                ResultCache.invalidate(ResultCache.scope(uri));
+            }
 
-            if (Logger.IS_DEBUG_ENABLED) {
-                Logger.debug(SqliteWrapper.class, "insert: time = " + (SystemClock.uptimeMillis() - start)
-                        + "ms, uri = " + uri + ", values = " + values + ", returning " + ret);
+            if (isDebug) {
+                Logger.debug(SqliteWrapper.class, "insert: time = " + micros(time)
+                        + ", uri = " + uri + ", values = " + values + ", returning " + ret);
             }
 
             return ret;
@@ -265,17 +329,35 @@ public final class SqliteWrapper {
     public static ContentProviderResult[] applyBatch(Context context, ContentResolver resolver,
             String authority, ArrayList<ContentProviderOperation> ops) throws RemoteException,
             OperationApplicationException {
+        final boolean isDebug = Logger.isDebugEnabled(SqliteWrapper.class);
         try {
-            long start;
-            if (Logger.IS_DEBUG_ENABLED) {
+            if (isDebug) {
                 Logger.debug(SqliteWrapper.class, "applyBatch: uri = " + authority + ", ops = " + ops);
-	            start = SystemClock.uptimeMillis();
             }
-            ContentProviderResult[] result = resolver.applyBatch(authority, ops);
+            final ContentProviderResult[] result;
+            final long time;
+            Logger.beginSpan("provider.applyBatch");
+            try {
+                result = resolver.applyBatch(authority, ops);
+            }
+            finally {
+                time = Logger.endSpan();
+            }
+            if (SlowQueryLog.isSlow(SlowQueryLog.Operation.PROVIDER_WRITE, time)) {
+                SlowQueryLog.record(SlowQueryLog.Operation.PROVIDER_WRITE, Uri.parse("content://" + authority), null,
+                        null, time);
+            }
+            if (QueryMetrics.isEnabled()) {
+                QueryMetrics.record(SlowQueryLog.Operation.PROVIDER_WRITE, Uri.parse("content://" + authority), null,
+                        time, result != null ? result.length : 0);
+            }
+            if (ResultCache.isEnabled()) {
+                ResultCache.invalidate("content://" + authority);
+            }
 
-            if (Logger.IS_DEBUG_ENABLED) {
-                Logger.debug(SqliteWrapper.class, "applyBatch: time = " + (SystemClock.uptimeMillis() - start)
-                        + "ms, uri = " + authority + ", ops = " + ops + ", returning " + (result!=null?result.length:0));
+            if (isDebug) {
+                Logger.debug(SqliteWrapper.class, "applyBatch: time = " + micros(time)
+                        + ", uri = " + authority + ", ops = " + ops + ", returning " + (result!=null?result.length:0));
             }
             return result;
         } catch (SQLiteException e) {
@@ -296,7 +378,7 @@ public final class SqliteWrapper {
     public static int getCount(Context context, Uri uri, String selection, String[] selectionArgs) {
         final Long count = getLong(context, uri, countCol, selection, selectionArgs);
         final int ret = count == null ? 0 : count.intValue();
-        if (Logger.IS_DEBUG_ENABLED) {
+        if (Logger.isDebugEnabled(SqliteWrapper.class)) {
             Logger.debug(SqliteWrapper.class, "getCount: uri = " + uri + ", selection = <" + selection +
             	">, args = " + truncate(selectionArgs) + ", count = " + ret);
         }
@@ -307,6 +389,16 @@ public final class SqliteWrapper {
      * Returns the long value of the first column returned by the query, or null if none.
      */
 	public static Long getLong(Context context, Uri uri, String[] col, String where, String[] whereArgs) {
+		String key = null;
+		long version = 0;
+		if (ResultCache.isEnabled()) {
+			key = ResultCache.key("getLong", uri, col, where, whereArgs);
+			version = ResultCache.version(ResultCache.scope(uri), ResultCache.table(uri));
+			final Object cached = ResultCache.get(key, version);
+			if (cached != ResultCache.MISS) {
+				return (Long)cached;
+			}
+		}
 		Long val = null;
 		Cursor cursor = null;
 		try {
@@ -314,6 +406,9 @@ public final class SqliteWrapper {
 			if (cursor != null && cursor.moveToFirst()) {
 				val = Long.valueOf(cursor.getLong(0));
 			}
+			if (cursor != null && key != null) {
+				ResultCache.put(key, version, val);
+			}
 		}
 		finally {
 			if (cursor != null) {
@@ -326,58 +421,57 @@ public final class SqliteWrapper {
 	public static int getCount(SQLiteDatabase db, String table, String where, String[] whereArgs) {
 		final Long count = getLong(db, table, countCol, where, whereArgs);
 		final int ret = count == null ? 0 : count.intValue();
-		if (Logger.IS_DEBUG_ENABLED) {
+		if (Logger.isDebugEnabled(SqliteWrapper.class)) {
 			Logger.debug(SqliteWrapper.class, "getCount: table = " + table + ", where = <" + where +
 				">, args = " + truncate(whereArgs) + ", count = " + ret);
 		}
 		return ret;
 	}
 
+	/**
+	 * Returns the long value of the first column of the first row, or null if none.
+	 * Runs through the database's {@link StatementCache} instead of opening a cursor.
+	 */
 	public static Long getLong(SQLiteDatabase db, String table, String[] cols, String where, String[] whereArgs) {
-		Long val = null;
-		Cursor cursor = null;
-		try {
-			cursor = query(db, table, cols, where, whereArgs, null, null, null);
-			if (cursor != null && cursor.moveToFirst()) {
-				val = Long.valueOf(cursor.getLong(0));
-			}
-		}
-		finally {
-			if (cursor != null) {
-				cursor.close();
-			}
-		}
-		return val;
+		return (Long)simpleQuery("getLong", db, table, makeSelect(table, cols, where), whereArgs, false);
 	}
 
     public static Long getLong(SQLiteDatabase db, String query, String[] args) {
-        Long val = null;
-        Cursor cursor = null;
-	    try {
-	        cursor = rawQuery(db, query, args);
-            if (cursor != null && cursor.moveToFirst()) {
-                val = Long.valueOf(cursor.getLong(0));
-            }
-        }
-        finally {
-            if (cursor != null) {
-                cursor.close();
+        try {
+            return (Long)simpleQuery("getLong", db, null, query, args, false);
+        } catch (SQLiteException e) {
+            if (Logger.IS_ERROR_ENABLED) {
+                Logger.error(true, SqliteWrapper.class, "getLong:", e);
             }
+            return null;
         }
-        return val;
     }
 
     /**
      * Returns the string value of the first column returned by the query, or null if none.
      */
 	public static String getString(Context context, Uri uri, String col, String where, String[] whereArgs) {
+		final String[] cols = { col };
+		String key = null;
+		long version = 0;
+		if (ResultCache.isEnabled()) {
+			key = ResultCache.key("getString", uri, cols, where, whereArgs);
+			version = ResultCache.version(ResultCache.scope(uri), ResultCache.table(uri));
+			final Object cached = ResultCache.get(key, version);
+			if (cached != ResultCache.MISS) {
+				return (String)cached;
+			}
+		}
 		String val = null;
 		Cursor cursor = null;
 		try {
-			cursor = query(context, context.getContentResolver(), uri, new String[] { col }, where, whereArgs, null);
+			cursor = query(context, context.getContentResolver(), uri, cols, where, whereArgs, null);
 			if (cursor != null && cursor.moveToFirst()) {
 				val = cursor.getString(0);
 			}
+			if (cursor != null && key != null) {
+				ResultCache.put(key, version, val);
+			}
 		}
 		finally {
 			if (cursor != null) {
@@ -391,42 +485,110 @@ public final class SqliteWrapper {
      * Returns the string value of the first column returned by the query, or null if none.
      */
     public static String getString(SQLiteDatabase db, String table, String col, String where, String[] whereArgs) {
-        String val = null;
-        Cursor cursor = null;
-	    try {
-	        cursor = query(db, table, new String[] { col }, where, whereArgs, null, null, null);
-            if (cursor != null && cursor.moveToFirst()) {
-                val = cursor.getString(0);
-            }
-        }
-        finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
-        return val;
+        return (String)simpleQuery("getString", db, table, makeSelect(table, new String[] { col }, where), whereArgs, true);
     }
 
     /**
      * Returns the string value of the first column returned by the query, or null if none.
      */
     public static String getString(SQLiteDatabase db, String query, String[] args) {
-        String val = null;
-        Cursor cursor = null;
         try {
-	        cursor = rawQuery(db, query, args);
-            if (cursor != null && cursor.moveToFirst()) {
-                val = cursor.getString(0);
+            return (String)simpleQuery("getString", db, null, query, args, true);
+        } catch (SQLiteException e) {
+            if (Logger.IS_ERROR_ENABLED) {
+                Logger.error(true, SqliteWrapper.class, "getString:", e);
             }
+            return null;
         }
-        finally {
-            if (cursor != null) {
-                cursor.close();
+    }
+
+    /**
+     * Runs a single-value query on a cached statement and returns the first column of
+     * the first row as a Long or String, or null if there is no row.  When the table
+     * is given the result can come from, and is stored in, the {@link ResultCache}.
+     */
+    private static Object simpleQuery(String method, SQLiteDatabase db, String table, String sql, String[] args,
+            boolean string) {
+        String cacheKey = null;
+        long version = 0;
+        // inside a transaction the value may be uncommitted
+        if (table != null && ResultCache.isEnabled() && !db.inTransaction() && ResultCache.readsOneTable(sql)) {
+            ResultCache.settle();
+            final String scope = ResultCache.scope(db);
+            final String name = scope != null ? ResultCache.table(db, scope, table) : null;
+            if (name != null) {
+                cacheKey = ResultCache.key(scope, name, method + ' ' + sql, args);
+                version = ResultCache.version(scope, name);
+                final Object cached = ResultCache.get(cacheKey, version);
+                if (cached != ResultCache.MISS) {
+                    if (Logger.isDebugEnabled(SqliteWrapper.class)) {
+                        Logger.debug(SqliteWrapper.class, method + ": cached, sql = " + sql + ", args = "
+                                + truncate(args) + ", returning " + cached);
+                    }
+                    return cached;
+                }
+            }
+        }
+        if (isSelect(sql)) {
+            // read-only, so it can run on a reader connection of a DatabasePool
+            db = DatabasePool.forRead(db);
+        }
+        final boolean isDebug = Logger.isDebugEnabled(SqliteWrapper.class);
+        final StatementCache cache = StatementCache.get(db);
+        final String key = StatementCache.canonical(sql);
+        Object val = null;
+        final long time;
+        Logger.beginSpan("db.simpleQuery");
+        try {
+            final SQLiteStatement stmt = cache.acquire(key, sql);
+            boolean reusable = false;
+            try {
+                bindAll(stmt, args);
+                val = string ? stmt.simpleQueryForString() : Long.valueOf(stmt.simpleQueryForLong());
+                reusable = true;
+            } catch (SQLiteDoneException e) {
+                // no rows
+                reusable = true;
+            } finally {
+                if (reusable) {
+                    cache.release(key, stmt);
+                } else {
+                    cache.discard(stmt);
+                }
             }
+        } finally {
+            time = Logger.endSpan();
+        }
+        if (SlowQueryLog.isSlow(SlowQueryLog.Operation.QUERY, time)) {
+            SlowQueryLog.record(SlowQueryLog.Operation.QUERY, db, key, args, time);
+        }
+        if (QueryMetrics.isEnabled()) {
+            QueryMetrics.record(SlowQueryLog.Operation.QUERY, key, time, val == null ? 0 : 1);
+        }
+        if (cacheKey != null) {
+            ResultCache.put(cacheKey, version, val);
+        }
+
+        if (isDebug) {
+            Logger.debug(SqliteWrapper.class, method + ": time = " + micros(time) + ", sql = " + key + ", args = "
+                    + truncate(args) + ", returning " + val);
+            checkQueryPlan(db, key);
         }
         return val;
     }
 
+    private static void bindAll(SQLiteStatement stmt, String[] args) {
+        if (args != null) {
+            for (int i = 0; i < args.length; ++i) {
+                if (args[i] == null) {
+                    stmt.bindNull(i + 1);
+                } else {
+                    stmt.bindString(i + 1, args[i]);
+                }
+            }
+        }
+    }
+
 	/**
 	 * Returns the string value of the given column for the given table and rowId.
 	 */
@@ -438,23 +600,53 @@ public final class SqliteWrapper {
 
 	public static Cursor query(SQLiteDatabase db, String table, String[] cols, String where, String[] whereArgs,
 			String groupBy, String having, String sort) {
-		final long start;
-		final String params;
-		if (Logger.IS_DEBUG_ENABLED) {
-			params = "table = " + table + ", cols = " + Arrays.toString(cols) + ", where = <" + where + ">, args = "
-				+ truncate(whereArgs) + ", groupBy = " + groupBy + ", having = " + having + ", sort = " + sort;
-			Logger.debug(SqliteWrapper.class, "query: " + params);
-			start = SystemClock.uptimeMillis();
+		// every clause can call changes() or name a temp table, so check the statement as a whole
+		if (!isConnectionScoped(makeQuery(table, cols, where, groupBy, having, sort))) {
+			// read-only, so it can run on a reader connection of a DatabasePool
+			db = DatabasePool.forRead(db);
+		}
+		final boolean isDebug = Logger.isDebugEnabled(SqliteWrapper.class);
+		final BinaryLog bin = isDebug ? Logger.getBinaryLog() : null;
+		String params = null;
+		if (isDebug) {
+			if (bin == null) {
+				params = "table = " + table + ", cols = " + truncate(cols) + ", where = <" + where + ">, args = "
+					+ truncate(whereArgs) + ", groupBy = " + groupBy + ", having = " + having + ", sort = " + sort;
+				Logger.debug(SqliteWrapper.class, "query: " + params);
+			}
 		}
 
-		final Cursor cursor = db.query(table, cols, where, whereArgs, groupBy, having, sort);
+		Cursor cursor;
+		final long queryTime;
+		Logger.beginSpan("db.query");
+		try {
+			cursor = db.query(table, cols, where, whereArgs, groupBy, having, sort);
+		}
+		finally {
+			queryTime = Logger.endSpan();
+		}
 
-		if (Logger.IS_DEBUG_ENABLED) {
-			final long queryTime = SystemClock.uptimeMillis() - start;
-			final String count = cursor == null ? "null" : Integer.toString(cursor.getCount());
-			final long fillTime = SystemClock.uptimeMillis() - (start + queryTime);
-			Logger.debug(SqliteWrapper.class, "query: query time = " + queryTime + "ms, fill time = " + fillTime + "ms, "
-				+ params + ", returning " + count);
+		if (isDebug) {
+			if (bin != null) {
+				bin.log(bin.template(QUERY_TEMPLATE), queryTime / 1000, table, where);
+			}
+			else {
+				Logger.debug(SqliteWrapper.class, "query: query time = " + micros(queryTime) + ", " + params
+					+ (cursor == null ? ", returning null" : ""));
+			}
+			if (cursor != null) {
+				// counting the rows here would make SQLite run the whole query up front
+				cursor = new InstrumentedCursor(cursor, "query: table = " + table);
+			}
+		}
+		if (QueryMetrics.isEnabled() || SlowQueryLog.isStarted()) {
+			final String sql = makeQuery(table, cols, where, groupBy, having, sort);
+			if (QueryMetrics.isEnabled()) {
+				cursor = QueryMetrics.measure(cursor, SlowQueryLog.Operation.QUERY, sql, queryTime);
+			}
+			if (SlowQueryLog.isStarted()) {
+				cursor = SlowQueryLog.watch(cursor, db, sql, whereArgs, queryTime);
+			}
 		}
 
 		return cursor;
@@ -475,12 +667,10 @@ public final class SqliteWrapper {
 	    if (Logger.IS_DEBUG_ENABLED) {
 	    }
 	    String[] projection = new String[] { "MAX(" + columnName + ")" };
-        Cursor c = SqliteWrapper.query(context, uri, projection, selection, null, null);
-        if (c != null) {
-            if (c.moveToFirst()) {
-                maxId = c.getLong(0);
-            }
-            c.close();
+        // through getLong so the result can come from the ResultCache
+        final Long val = getLong(context, uri, projection, selection, null);
+        if (val != null) {
+            maxId = val.longValue();
         }
         return maxId;
     }
@@ -500,12 +690,10 @@ public final class SqliteWrapper {
 	    if (Logger.IS_DEBUG_ENABLED) {
 	    }
 	    String[] projection = new String[] { "MIN(" + columnName + ")" };
-        Cursor c = SqliteWrapper.query(context, uri, projection, selection, null, null);
-        if (c != null) {
-            if (c.moveToFirst()) {
-                maxId = c.getLong(0);
-            }
-            c.close();
+        // through getLong so the result can come from the ResultCache
+        final Long val = getLong(context, uri, projection, selection, null);
+        if (val != null) {
+            maxId = val.longValue();
         }
         return maxId;
     }
@@ -533,30 +721,44 @@ public final class SqliteWrapper {
     }
 
     public static int executeUpdateDelete(SQLiteDatabase db, SQLiteStatement stmt) {
-        final long start;
-        final String sql;
-        final String debug;
-        if (Logger.IS_DEBUG_ENABLED) {
+        final boolean isDebug = Logger.isDebugEnabled(SqliteWrapper.class);
+        String sql = null;
+        String debug = null;
+        if (isDebug) {
         	sql = getSql(stmt);
             debug = getStatement(stmt, sql);
             Logger.debug(SqliteWrapper.class, "executeUpdateDelete: " + debug);
-	        start = SystemClock.uptimeMillis();
         }
 
         int rows = 0;
-
-        if (Build.VERSION.SDK_INT >= 11) {
-        	rows = stmt.executeUpdateDelete();
+        final long delta;
+        Logger.beginSpan("db.executeUpdateDelete");
+        try {
+            if (Build.VERSION.SDK_INT >= 11) {
+                rows = stmt.executeUpdateDelete();
+            }
+            else {
+                // have to call execute and then query number of affected rows
+                stmt.execute();
+                rows = getChanges(db);
+            }
+        }
+        finally {
+            delta = Logger.endSpan();
+        }
+        if (SlowQueryLog.isSlow(SlowQueryLog.Operation.EXEC, delta)) {
+            SlowQueryLog.record(SlowQueryLog.Operation.EXEC, db, getSql(stmt), getBindArgs(stmt), delta);
+        }
+        if (QueryMetrics.isEnabled()) {
+            QueryMetrics.record(SlowQueryLog.Operation.EXEC, getSql(stmt), delta, rows);
         }
-        else {
-        	// have to call execute and then query number of affected rows
-        	stmt.execute();
-        	rows = getChanges(db);
+        DatabasePool.afterWrite(db);
+        if (ResultCache.isEnabled()) {
+            ResultCache.invalidate(db);
         }
 
-        if (Logger.IS_DEBUG_ENABLED) {
-            final long delta = SystemClock.uptimeMillis() - start;
-            Logger.debug(SqliteWrapper.class, "executeUpdateDelete: time = " + delta + "ms, stmt = " + debug
+        if (isDebug) {
+            Logger.debug(SqliteWrapper.class, "executeUpdateDelete: time = " + micros(delta) + ", stmt = " + debug
                     + ", returning " + rows);
 
             final String select = makeSelect(sql);
@@ -594,20 +796,37 @@ public final class SqliteWrapper {
 	}
 
 	public static long executeInsert(SQLiteStatement stmt) {
-        final long start;
-        final String debug;
-        if (Logger.IS_DEBUG_ENABLED) {
+        final boolean isDebug = Logger.isDebugEnabled(SqliteWrapper.class);
+        String debug = null;
+        if (isDebug) {
 	        final String sql = getSql(stmt);
             debug = getStatement(stmt, sql);
             Logger.debug(SqliteWrapper.class, "executeInsert: " + debug);
-	        start = SystemClock.uptimeMillis();
         }
 
-        final long id = stmt.executeInsert();
+        final long id;
+        final long delta;
+        Logger.beginSpan("db.executeInsert");
+        try {
+            id = stmt.executeInsert();
+        }
+        finally {
+            delta = Logger.endSpan();
+        }
+        if (SlowQueryLog.isSlow(SlowQueryLog.Operation.INSERT, delta)) {
+            // without the database the plan is not captured
+            SlowQueryLog.record(SlowQueryLog.Operation.INSERT, (SQLiteDatabase) null, getSql(stmt), getBindArgs(stmt), delta);
+        }
+        if (QueryMetrics.isEnabled()) {
+            QueryMetrics.record(SlowQueryLog.Operation.INSERT, getSql(stmt), delta, id != -1 ? 1 : 0);
+        }
+        if (ResultCache.isEnabled()) {
+            // the statement does not say which database it belongs to
+            ResultCache.invalidateAll();
+        }
 
-        if (Logger.IS_DEBUG_ENABLED) {
-            final long delta = SystemClock.uptimeMillis() - start;
-            Logger.debug(SqliteWrapper.class, "executeInsert: time = " + delta + "ms, stmt = " + debug
+        if (isDebug) {
+            Logger.debug(SqliteWrapper.class, "executeInsert: time = " + micros(delta) + ", stmt = " + debug
                     + ", returning " + id);
         }
 
@@ -620,35 +839,181 @@ public final class SqliteWrapper {
 
     public static long insertWithOnConflict(SQLiteDatabase db, String table, ContentValues values,
             int conflictAlgorithm) {
-        final long start;
-        if (Logger.IS_DEBUG_ENABLED) {
+        final boolean isDebug = Logger.isDebugEnabled(SqliteWrapper.class);
+        if (isDebug) {
             Logger.debug(SqliteWrapper.class, "insertWithOnConflict: table = " + table + ", values = " + values);
-	        start = SystemClock.uptimeMillis();
         }
-        final long id = db.insertWithOnConflict(table, null, values, conflictAlgorithm);
+        final long id;
+        final long delta;
+        Logger.beginSpan("db.insert");
+        try {
+            id = db.insertWithOnConflict(table, null, values, conflictAlgorithm);
+        }
+        finally {
+            delta = Logger.endSpan();
+        }
+        if (SlowQueryLog.isSlow(SlowQueryLog.Operation.INSERT, delta)) {
+            SlowQueryLog.record(SlowQueryLog.Operation.INSERT, db, makeInsert(table, values), null, delta);
+        }
+        if (QueryMetrics.isEnabled()) {
+            QueryMetrics.record(SlowQueryLog.Operation.INSERT, makeInsert(table, values), delta, id != -1 ? 1 : 0);
+        }
+        DatabasePool.afterWrite(db);
+        if (ResultCache.isEnabled()) {
+            ResultCache.invalidate(db, table);
+        }
 
-        if (Logger.IS_DEBUG_ENABLED) {
-            final long delta = SystemClock.uptimeMillis() - start;
-            Logger.debug(SqliteWrapper.class, "insertWithOnConflict: time = " + delta + "ms, table = " + table
+        if (isDebug) {
+            Logger.debug(SqliteWrapper.class, "insertWithOnConflict: time = " + micros(delta) + ", table = " + table
                     + ", values = " + values + ", returning " + id);
         }
 
         return id;
     }
 
+    public static long bulkInsert(SQLiteDatabase db, String table, String[] cols, Iterator<Object[]> rows,
+            int chunkSize) {
+        return bulkInsert(db, table, cols, SQLiteDatabase.CONFLICT_NONE, rows, chunkSize);
+    }
+
+    /**
+     * Inserts rows of values in column order using one compiled statement, committing
+     * every chunkSize rows.  At each chunk boundary a waiting thread gets the database
+     * through yieldIfContendedSafely; otherwise the chunk is committed directly.  If a
+     * row fails, earlier chunks stay committed and the exception is rethrown.  Inside
+     * a caller's transaction everything is left to that transaction.  Returns the
+     * number of rows inserted, not counting rows skipped by the conflict algorithm.
+     * A chunkSize of 0 inserts everything in one transaction.
+     */
+    public static long bulkInsert(SQLiteDatabase db, String table, String[] cols, int conflictAlgorithm,
+            Iterator<Object[]> rows, int chunkSize) {
+        final boolean isDebug = Logger.isDebugEnabled(SqliteWrapper.class);
+        final StringBuilder sql = new StringBuilder("INSERT");
+        sql.append(CONFLICT_VALUES[conflictAlgorithm]);
+        sql.append(" INTO ");
+        sql.append(table);
+        sql.append(" (");
+        for (int i = 0; i < cols.length; ++i) {
+            if (i != 0) {
+                sql.append(", ");
+            }
+            sql.append(cols[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < cols.length; ++i) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(')');
+        if (isDebug) {
+            Logger.debug(SqliteWrapper.class, "bulkInsert: " + sql + ", chunk size = " + chunkSize);
+        }
+
+        final boolean chunked = chunkSize > 0 && !db.inTransaction();
+        long count = 0;
+        long inserted = 0;
+        int chunks = 0;
+        final long delta;
+        Logger.beginSpan("db.bulkInsert");
+        try {
+            final SQLiteStatement stmt = db.compileStatement(sql.toString());
+            try {
+                db.beginTransaction();
+                try {
+                    while (rows.hasNext()) {
+                        final Object[] row = rows.next();
+                        stmt.clearBindings();
+                        for (int i = 0; i < row.length; ++i) {
+                            bindValue(stmt, i + 1, row[i]);
+                        }
+                        if (stmt.executeInsert() != -1) {
+                            ++inserted;
+                        }
+                        ++count;
+                        if (chunked && count % chunkSize == 0) {
+                            ++chunks;
+                            if (!db.yieldIfContendedSafely()) {
+                                db.setTransactionSuccessful();
+                                db.endTransaction();
+                                db.beginTransaction();
+                            }
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            delta = Logger.endSpan();
+        }
+        if (SlowQueryLog.isSlow(SlowQueryLog.Operation.BULK_INSERT, delta)) {
+            SlowQueryLog.record(SlowQueryLog.Operation.BULK_INSERT, db, sql.toString(), null, delta);
+        }
+        if (QueryMetrics.isEnabled()) {
+            QueryMetrics.record(SlowQueryLog.Operation.BULK_INSERT, sql.toString(), delta, inserted);
+        }
+        DatabasePool.afterWrite(db);
+        if (ResultCache.isEnabled()) {
+            ResultCache.invalidate(db, table);
+        }
+
+        if (isDebug) {
+            Logger.debug(SqliteWrapper.class, "bulkInsert: time = " + micros(delta) + ", table = " + table
+                    + ", rows = " + count + ", inserted = " + inserted + ", chunks = " + (chunks + 1)
+                    + ", rows/sec = " + (delta == 0 ? 0 : count * 1000000000L / delta));
+        }
+
+        return inserted;
+    }
+
+    private static void bindValue(SQLiteStatement stmt, int index, Object value) {
+        if (value == null) {
+            stmt.bindNull(index);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            stmt.bindLong(index, ((Number)value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            stmt.bindDouble(index, ((Number)value).doubleValue());
+        } else if (value instanceof Boolean) {
+            stmt.bindLong(index, ((Boolean)value).booleanValue() ? 1 : 0);
+        } else if (value instanceof byte[]) {
+            stmt.bindBlob(index, (byte[])value);
+        } else {
+            stmt.bindString(index, value.toString());
+        }
+    }
+
     public static int update(SQLiteDatabase db, String table, ContentValues values, String where, String[] whereArgs) {
-        final long start;
-        if (Logger.IS_DEBUG_ENABLED) {
+        final boolean isDebug = Logger.isDebugEnabled(SqliteWrapper.class);
+        if (isDebug) {
             Logger.debug(SqliteWrapper.class, "update: table = " + table + ", where = <" + where + ">, args = "
                 + truncate(whereArgs) + ", values = " + values);
-	        start = SystemClock.uptimeMillis();
         }
 
-        final int rows = db.update(table, values, where, whereArgs);
+        final int rows;
+        final long delta;
+        Logger.beginSpan("db.update");
+        try {
+            rows = db.update(table, values, where, whereArgs);
+        }
+        finally {
+            delta = Logger.endSpan();
+        }
+        if (SlowQueryLog.isSlow(SlowQueryLog.Operation.UPDATE, delta)) {
+            SlowQueryLog.record(SlowQueryLog.Operation.UPDATE, db, makeUpdate(table, values, where), whereArgs, delta);
+        }
+        if (QueryMetrics.isEnabled()) {
+            QueryMetrics.record(SlowQueryLog.Operation.UPDATE, makeUpdate(table, values, where), delta, rows);
+        }
+        DatabasePool.afterWrite(db);
+        if (ResultCache.isEnabled()) {
+            ResultCache.invalidate(db, table);
+        }
 
-        if (Logger.IS_DEBUG_ENABLED) {
-            final long delta = SystemClock.uptimeMillis() - start;
-            Logger.debug(SqliteWrapper.class, "update: time = " + delta + "ms, table = " + table +
+        if (isDebug) {
+            Logger.debug(SqliteWrapper.class, "update: time = " + micros(delta) + ", table = " + table +
                 ", where = <" + where + ">, args = " + truncate(whereArgs) +
                 ", values = " + values + ", returning " + rows);
 
@@ -659,17 +1024,33 @@ public final class SqliteWrapper {
     }
 
     public static int delete(SQLiteDatabase db, String table, String where, String[] whereArgs) {
-        final long start;
-        if (Logger.IS_DEBUG_ENABLED) {
+        final boolean isDebug = Logger.isDebugEnabled(SqliteWrapper.class);
+        if (isDebug) {
             Logger.debug(SqliteWrapper.class, "delete: table = " + table + ", where = <" + where + ">, args = " + truncate(whereArgs));
-	        start = SystemClock.uptimeMillis();
         }
 
-        final int rows = db.delete(table, where, whereArgs);
+        final int rows;
+        final long delta;
+        Logger.beginSpan("db.delete");
+        try {
+            rows = db.delete(table, where, whereArgs);
+        }
+        finally {
+            delta = Logger.endSpan();
+        }
+        if (SlowQueryLog.isSlow(SlowQueryLog.Operation.DELETE, delta)) {
+            SlowQueryLog.record(SlowQueryLog.Operation.DELETE, db, makeDelete(table, where), whereArgs, delta);
+        }
+        if (QueryMetrics.isEnabled()) {
+            QueryMetrics.record(SlowQueryLog.Operation.DELETE, makeDelete(table, where), delta, rows);
+        }
+        DatabasePool.afterWrite(db);
+        if (ResultCache.isEnabled()) {
+            ResultCache.invalidate(db, table);
+        }
 
-        if (Logger.IS_DEBUG_ENABLED) {
-            final long delta = SystemClock.uptimeMillis() - start;
-            Logger.debug(SqliteWrapper.class, "delete: time = " + delta + "ms, table = " + table +
+        if (isDebug) {
+            Logger.debug(SqliteWrapper.class, "delete: time = " + micros(delta) + ", table = " + table +
                 ", where = <" + where + ">, args = " + truncate(whereArgs) + ", returning " + rows);
 
             checkQueryPlan(db, table, where);
@@ -679,27 +1060,52 @@ public final class SqliteWrapper {
     }
 
     public static Cursor rawQuery(SQLiteDatabase db, String query, String[] args) {
-        final long start;
-        final String params;
-
-        if (Logger.IS_DEBUG_ENABLED) {
-            params = "query = " + query + ", args = " + truncate(args);
-            Logger.debug(SqliteWrapper.class, "rawQuery: " + params);
-	        start = SystemClock.uptimeMillis();
+        if (isSelect(query)) {
+            // read-only, so it can run on a reader connection of a DatabasePool
+            db = DatabasePool.forRead(db);
+        }
+        final boolean isDebug = Logger.isDebugEnabled(SqliteWrapper.class);
+        final BinaryLog bin = isDebug ? Logger.getBinaryLog() : null;
+        String params = null;
+
+        if (isDebug) {
+            if (bin == null) {
+                params = "query = " + query + ", args = " + truncate(args);
+                Logger.debug(SqliteWrapper.class, "rawQuery: " + params);
+            }
         }
 
         try {
-            final Cursor cursor = db.rawQuery(query, args);
+            Cursor cursor;
+            final long queryTime;
+            Logger.beginSpan("db.rawQuery");
+            try {
+                cursor = db.rawQuery(query, args);
+            }
+            finally {
+                queryTime = Logger.endSpan();
+            }
 
-            if (Logger.IS_DEBUG_ENABLED) {
-                final long queryTime = SystemClock.uptimeMillis() - start;
-                final String count = cursor == null ? "null" : Integer.toString(cursor.getCount());
-                final long fillTime = SystemClock.uptimeMillis() - (start + queryTime);
-                Logger.debug(SqliteWrapper.class, "rawQuery: query time = " + queryTime + "ms, fill time = "
-                        + fillTime + "ms, " + params + ", returning " + count);
+            if (isDebug) {
+                if (bin != null) {
+                    bin.log(bin.template(RAW_QUERY_TEMPLATE), queryTime / 1000, query);
+                }
+                else {
+                    Logger.debug(SqliteWrapper.class, "rawQuery: query time = " + micros(queryTime) + ", " + params
+                            + (cursor == null ? ", returning null" : ""));
+                }
+                if (cursor != null) {
+                    cursor = new InstrumentedCursor(cursor, "rawQuery: query = " + query);
+                }
 
                 checkQueryPlan(db, query);
             }
+            if (QueryMetrics.isEnabled()) {
+                cursor = QueryMetrics.measure(cursor, SlowQueryLog.Operation.QUERY, query, queryTime);
+            }
+            if (SlowQueryLog.isStarted()) {
+                cursor = SlowQueryLog.watch(cursor, db, query, args, queryTime);
+            }
 
             return cursor;
         } catch (SQLiteException e) {
@@ -711,18 +1117,122 @@ public final class SqliteWrapper {
     }
 
     public static void execSQL(SQLiteDatabase db, String sql) {
-        final long start;
-        if (Logger.IS_DEBUG_ENABLED) {
+        final boolean isDebug = Logger.isDebugEnabled(SqliteWrapper.class);
+        if (isDebug) {
             Logger.debug(SqliteWrapper.class, "execSQL: sql = " + sql);
-	        start = SystemClock.uptimeMillis();
         }
 
-        db.execSQL(sql);
+        final long delta;
+        Logger.beginSpan("db.execSQL");
+        try {
+            // not through the StatementCache: with no bind arguments the SQL carries its
+            // values, so one-off statements would only evict the reusable ones
+            db.execSQL(sql);
+        }
+        finally {
+            delta = Logger.endSpan();
+        }
+        if (SlowQueryLog.isSlow(SlowQueryLog.Operation.EXEC, delta)) {
+            SlowQueryLog.record(SlowQueryLog.Operation.EXEC, db, sql, null, delta);
+        }
+        if (QueryMetrics.isEnabled()) {
+            QueryMetrics.record(SlowQueryLog.Operation.EXEC, sql, delta, 0);
+        }
+        DatabasePool.afterWrite(db);
+        if (ResultCache.isEnabled()) {
+            if (isSchemaChange(sql)) {
+                ResultCache.invalidateSchema(db);
+            } else {
+                ResultCache.invalidate(db);
+            }
+        }
 
-        if (Logger.IS_DEBUG_ENABLED) {
-            final long delta = SystemClock.uptimeMillis() - start;
-            Logger.debug(SqliteWrapper.class, "execSQL: time = " + delta + "ms, sql = " + sql);
+        if (isDebug) {
+            Logger.debug(SqliteWrapper.class, "execSQL: time = " + micros(delta) + ", sql = " + sql);
+        }
+    }
+
+    /**
+     * Receives one page of rows from {@link #forEachPage}.
+     */
+    public interface PageConsumer {
+        /**
+         * Called with a cursor positioned before the first row of the page; it is
+         * closed after the call.  Returns false to stop paging.
+         */
+        boolean onPage(Cursor page);
+    }
+
+    /**
+     * Walks the rows matching where in ascending order of an integer key column
+     * that is unique, such as the rowid or an integer primary key.  Each page is
+     * a separate query for the next pageSize rows after the last key seen, so
+     * memory stays bounded by one page however large the table is, and each page
+     * is as cheap as the first when the key is indexed.  The pages have an extra
+     * last column, the key as __page_key.  Returns the number of rows handed to the
+     * consumer, or throws {@link SQLiteException} if a page cannot be read, since
+     * returning early would pass a partial walk off as complete.
+     */
+    public static long forEachPage(SQLiteDatabase db, String table, String[] cols, String keyCol, String where,
+            String[] whereArgs, int pageSize, PageConsumer consumer) {
+        final boolean all = cols == null || cols.length == 0;
+        final int numCols = all ? 1 : cols.length;
+        final String[] withKey = new String[numCols + 1];
+        if (all) {
+            withKey[0] = "*";
+        } else {
+            System.arraycopy(cols, 0, withKey, 0, numCols);
+        }
+        withKey[numCols] = keyCol + " AS " + PAGE_KEY;
+        cols = withKey;
+        final String select = makeSelect(table, cols, null);
+        final String order = " ORDER BY " + keyCol + " LIMIT " + pageSize;
+        final String firstPage = select + (where != null && where.length() != 0 ? " WHERE " + where : "") + order;
+        final String nextPage = select + " WHERE " + (where != null && where.length() != 0 ? "(" + where + ") AND " : "")
+                + keyCol + " > ?" + order;
+        final int numArgs = whereArgs == null ? 0 : whereArgs.length;
+        final String[] nextArgs = new String[numArgs + 1];
+        if (numArgs != 0) {
+            System.arraycopy(whereArgs, 0, nextArgs, 0, numArgs);
+        }
+
+        long total = 0;
+        int pages = 0;
+        String sql = firstPage;
+        String[] args = whereArgs;
+        while (true) {
+            final Cursor cursor = rawQuery(db, sql, args);
+            if (cursor == null) {
+                // rawQuery logged the cause
+                throw new SQLiteException("forEachPage: unable to read page " + (pages + 1) + " of " + table
+                        + " after " + total + " rows");
+            }
+            try {
+                final int rows = cursor.getCount();
+                if (rows == 0) {
+                    break;
+                }
+                ++pages;
+                total += rows;
+                cursor.moveToLast();
+                final long lastKey = cursor.getLong(cursor.getColumnIndexOrThrow(PAGE_KEY));
+                cursor.moveToPosition(-1);
+                if (!consumer.onPage(cursor) || rows < pageSize) {
+                    break;
+                }
+                nextArgs[numArgs] = Long.toString(lastKey);
+                sql = nextPage;
+                args = nextArgs;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        if (Logger.isDebugEnabled(SqliteWrapper.class)) {
+            Logger.debug(SqliteWrapper.class, "forEachPage: table = " + table + ", key = " + keyCol + ", where = <"
+                    + where + ">, args = " + truncate(whereArgs) + ", pages = " + pages + ", rows = " + total);
         }
+        return total;
     }
 
     public static void analyze(SQLiteDatabase db) {
@@ -733,6 +1243,16 @@ public final class SqliteWrapper {
         return stmt.toString().replaceFirst("SQLiteProgram: ", "");
     }
 
+    private static Object[] getBindArgs(SQLiteStatement stmt) {
+        if (bindArgs != null) {
+            try {
+                return (Object[]) bindArgs.get(stmt);
+            } catch (Throwable t) {
+            }
+        }
+        return null;
+    }
+
     private static String getStatement(SQLiteStatement stmt, String sql) {
         final StringBuilder sb = new StringBuilder(sql);
         if (bindArgs != null) {
@@ -746,82 +1266,42 @@ public final class SqliteWrapper {
         return sb.toString();
     }
 
+	/**
+	 * Registers the query's fingerprint with the {@link QueryPlanRegistry} and, the first
+	 * time it is seen, logs its plan and warns about full scans, temporary B-trees and
+	 * embedded literals.
+	 */
 	public static void checkQueryPlan(SQLiteDatabase db, String orgQuery) {
-		if (Logger.IS_DEBUG_ENABLED) {
-			Cursor cursor = null;
+		if (Logger.IS_DEBUG_ENABLED && Logger.isDebugEnabled(SqliteWrapper.class)) {
 			try {
-				// normalize query and check for embedded params
-				String query = spacePat.matcher(orgQuery).replaceAll(" ");
-
-				// check for where clauses
-				boolean embedded = false;
-				Matcher whereMatcher = wherePat.matcher(query);
-				if (whereMatcher.matches()) {
-					String where = whereMatcher.group(2);
-
-					Matcher matcher = unequalPat.matcher(where);
-					if (matcher.find()) {
-						where = matcher.replaceAll(" != ? ");
-					}
-
-					matcher = equalPat.matcher(where);
-					if (matcher.find()) {
-						embedded = true;
-						where = matcher.replaceAll(" = ?");
-					}
-
-					query = whereMatcher.group(1) + where;
-				}
-
-				// check query plan on first query
-				final boolean check;
-				synchronized (queryMap) {
-					if (check = !queryMap.contains(query)) {
-						queryMap.add(query);
-					}
-				}
-
-				if (check) {
-					if (embedded) {
-						Logger.warn(SqliteWrapper.class, "checkQueryPlan: query has embedded params: " + orgQuery);
-					}
-					cursor = db.rawQuery("EXPLAIN QUERY PLAN " + query, null);
-					if (cursor != null) {
-						final String prefix = "checkQueryPlan:   ";
-						final StringBuilder sb = new StringBuilder(prefix);
-						sb.append("query = ");
-						sb.append(query);
-						sb.append(", plan =\n");
-						final int numCols = cursor.getColumnCount();
-						final int lastRow = cursor.getCount() - 1;
-						for (int row = 0; row <= lastRow; ++row) {
-							cursor.moveToPosition(row);
-							sb.append(prefix);
-							for (int col = 0; col < numCols; ++col) {
-								if (col > 0) {
-									sb.append(' ');
-								}
-								sb.append(cursor.getString(col));
-							}
-							if (row < lastRow) {
-								sb.append('\n');
-							}
-						}
-						Logger.debug(SqliteWrapper.class, sb.toString());
+				final QueryPlanRegistry.Plan plan = QueryPlanRegistry.check(db, orgQuery);
+				if (plan != null) {
+					final String prefix = "checkQueryPlan:   ";
+					final StringBuilder sb = new StringBuilder(prefix);
+					sb.append("query = ");
+					sb.append(plan.getFingerprint().getText());
+					sb.append(", plan =");
+					for (String detail : plan.getDetails()) {
+						sb.append('\n');
+						sb.append(prefix);
+						sb.append(detail);
 					}
-					else {
-						Logger.error(SqliteWrapper.class, "checkQueryPlan: null cursor");
+					Logger.debug(SqliteWrapper.class, sb.toString());
+
+					final int flags = plan.getFlags();
+					if (flags != 0) {
+						sb.setLength(0);
+						sb.append("checkQueryPlan: ");
+						QueryPlanRegistry.appendFlags(sb, flags);
+						sb.append(": ");
+						sb.append(orgQuery);
+						Logger.warn(SqliteWrapper.class, sb.toString());
 					}
 				}
 			}
 			catch (Throwable t) {
 				Logger.error(t);
 			}
-			finally {
-				if (cursor != null) {
-					cursor.close();
-				}
-			}
 		}
 	}
 
@@ -831,8 +1311,70 @@ public final class SqliteWrapper {
 		}
 	}
 
+	private static boolean isSchemaChange(String sql) {
+		final int start = skipSpace(sql);
+		return sql.regionMatches(true, start, "CREATE ", 0, 7) || sql.regionMatches(true, start, "DROP ", 0, 5)
+			|| sql.regionMatches(true, start, "ALTER ", 0, 6);
+	}
+
+	/**
+	 * Returns true for a SELECT that gives the same answer on any connection, and so
+	 * can be sent to a reader of a {@link DatabasePool}.
+	 */
+	private static boolean isSelect(String sql) {
+		final int start = skipSpace(sql);
+		return sql.regionMatches(true, start, "SELECT", 0, 6) && !isConnectionScoped(sql);
+	}
+
+	/**
+	 * Returns true if the SQL calls last_insert_rowid(), changes() or total_changes(),
+	 * or names a table in the temp schema, all of which only mean something on the
+	 * connection that made the changes or the table.
+	 */
+	private static boolean isConnectionScoped(String sql) {
+		if (sql == null) {
+			return false;
+		}
+		final SqlTokenizer tok = new SqlTokenizer(sql);
+		boolean function = false;
+		boolean schema = false;
+		while (tok.next() != SqlTokenizer.END) {
+			if ((function && tok.is("(")) || (schema && tok.is("."))) {
+				return true;
+			}
+			function = tok.is("last_insert_rowid") || tok.is("changes") || tok.is("total_changes");
+			schema = tok.is("temp") || tok.is("temporary");
+		}
+		return false;
+	}
+
+	private static int skipSpace(String sql) {
+		int start = 0;
+		final int len = sql.length();
+		while (start < len && Character.isWhitespace(sql.charAt(start))) {
+			++start;
+		}
+		return start;
+	}
+
 	private static String makeSelect(String table, String where) {
-		final StringBuilder query = new StringBuilder("SELECT * FROM ");
+		return makeSelect(table, null, where);
+	}
+
+	private static String makeSelect(String table, String[] cols, String where) {
+		final StringBuilder query = new StringBuilder("SELECT ");
+		if (cols == null || cols.length == 0) {
+			query.append('*');
+		}
+		else {
+			for (int i = 0; i < cols.length; ++i) {
+				if (i != 0) {
+					query.append(", ");
+				}
+				query.append(cols[i]);
+			}
+		}
+		query.append(" FROM ");
 		query.append(table);
 		if (where != null && where.length() != 0) {
 			query.append(" WHERE ");
@@ -841,15 +1383,126 @@ public final class SqliteWrapper {
 		return query.toString();
 	}
 
+	private static String makeQuery(String table, String[] cols, String where, String groupBy, String having,
+			String sort) {
+		final StringBuilder query = new StringBuilder(makeSelect(table, cols, where));
+		if (groupBy != null && groupBy.length() != 0) {
+			query.append(" GROUP BY ");
+			query.append(groupBy);
+		}
+		if (having != null && having.length() != 0) {
+			query.append(" HAVING ");
+			query.append(having);
+		}
+		if (sort != null && sort.length() != 0) {
+			query.append(" ORDER BY ");
+			query.append(sort);
+		}
+		return query.toString();
+	}
+
+	private static String makeInsert(String table, ContentValues values) {
+		final StringBuilder sql = new StringBuilder("INSERT INTO ");
+		sql.append(table);
+		sql.append(" (");
+		int num = 0;
+		for (String col : values.keySet()) {
+			sql.append(num++ == 0 ? "" : ", ");
+			sql.append(col);
+		}
+		sql.append(") VALUES (");
+		for (int i = 0; i < num; ++i) {
+			sql.append(i == 0 ? "?" : ", ?");
+		}
+		sql.append(')');
+		return sql.toString();
+	}
+
+	private static String makeUpdate(String table, ContentValues values, String where) {
+		final StringBuilder sql = new StringBuilder("UPDATE ");
+		sql.append(table);
+		sql.append(" SET ");
+		boolean first = true;
+		for (String col : values.keySet()) {
+			sql.append(first ? "" : ", ");
+			sql.append(col);
+			sql.append(" = ?");
+			first = false;
+		}
+		if (where != null && where.length() != 0) {
+			sql.append(" WHERE ");
+			sql.append(where);
+		}
+		return sql.toString();
+	}
+
+	private static String makeDelete(String table, String where) {
+		return where == null || where.length() == 0 ? "DELETE FROM " + table : "DELETE FROM " + table + " WHERE " + where;
+	}
+
+	/**
+	 * Returns a SELECT over the rows an UPDATE or DELETE touches, for checking its plan,
+	 * or null if the statement is neither.
+	 */
 	private static String makeSelect(String updateOrDelete) {
-		final Matcher matcher = updateOrDeletePat.matcher(updateOrDelete);
-		if (matcher.matches()) {
-			final String table = matcher.group(1);
-			final String where = matcher.groupCount() == 1 ? null : matcher.group(2);
-			return makeSelect(table, where);
-		}
-		Logger.warn(SqliteWrapper.class, "makeSelect: unable to parse <" + updateOrDelete + ">");
-		return null;
+		final SqlTokenizer tok = new SqlTokenizer(updateOrDelete);
+		tok.next();
+		if (tok.is("UPDATE")) {
+			tok.next();
+			if (tok.is("OR")) {
+				tok.next();
+				tok.next();
+			}
+		}
+		else if (tok.is("DELETE")) {
+			tok.next();
+			if (!tok.is("FROM")) {
+				tok.next();
+			}
+			tok.next();
+		}
+		else {
+			Logger.warn(SqliteWrapper.class, "makeSelect: unable to parse <" + updateOrDelete + ">");
+			return null;
+		}
+
+		// the table name, which may be qualified by a schema
+		final int tableStart = tok.start;
+		int tableEnd = tok.end;
+		final int afterName = tok.position();
+		if (tok.next() == SqlTokenizer.PUNCT && tok.is(".")) {
+			tok.next();
+			tableEnd = tok.end;
+		}
+		else {
+			tok.reset(afterName);
+		}
+		if (tableEnd <= tableStart) {
+			Logger.warn(SqliteWrapper.class, "makeSelect: unable to parse <" + updateOrDelete + ">");
+			return null;
+		}
+
+		// the WHERE clause at the top level, up to any RETURNING clause
+		int depth = 0;
+		int whereStart = -1;
+		int whereEnd = updateOrDelete.length();
+		while (tok.next() != SqlTokenizer.END) {
+			if (tok.is("(")) {
+				++depth;
+			}
+			else if (tok.is(")")) {
+				--depth;
+			}
+			else if (depth == 0 && whereStart < 0 && tok.is("WHERE")) {
+				whereStart = tok.end;
+			}
+			else if (depth == 0 && tok.is("RETURNING")) {
+				whereEnd = tok.start;
+				break;
+			}
+		}
+		final String where = whereStart < 0 ? null : updateOrDelete.substring(whereStart, whereEnd).trim();
+		return makeSelect(updateOrDelete.substring(tableStart, tableEnd), where);
 	}
 
     public static String dumpRow(Cursor cursor) {
@@ -888,7 +1541,11 @@ public final class SqliteWrapper {
         return sb.toString();
     }
 
+    private static String micros(long nanos) {
+        return (nanos / 1000) + "us";
+    }
+
     private static String truncate(Object[] array) {
-        return Arrays.toString(array);
+        return Logger.toString(array);
     }
 }
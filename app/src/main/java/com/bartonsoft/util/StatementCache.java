@@ -0,0 +1,227 @@
+package com.bartonsoft.util;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.bartonsoft.logger.Logger;
+
+/**
+ * LRU cache of compiled statements for one database, keyed by canonical SQL.
+ * A statement is checked out with {@link #acquire(String)} and must be handed back
+ * with {@link #release(String, SQLiteStatement)}; while checked out no other thread
+ * can bind it or close it by eviction.  Statements compiled while one is already
+ * out for the same SQL are closed on release instead of being kept.
+ */
+public final class StatementCache {
+    private static final Map<SQLiteDatabase, StatementCache> caches = new IdentityHashMap<SQLiteDatabase, StatementCache>();
+    private static volatile int defaultMaxSize = 32;
+
+    private final SQLiteDatabase db;
+    private final LinkedHashMap<String, SQLiteStatement> statements =
+        new LinkedHashMap<String, SQLiteStatement>(16, 0.75f, true);
+    private int maxSize;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private StatementCache(SQLiteDatabase db, int maxSize) {
+        this.db = db;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the cache for the database, creating it on first use.  Caches of
+     * databases that have since been closed are dropped.
+     */
+    public static StatementCache get(SQLiteDatabase db) {
+        List<StatementCache> closed = null;
+        StatementCache cache;
+        synchronized (caches) {
+            cache = caches.get(db);
+            if (cache == null) {
+                final Iterator<StatementCache> iterator = caches.values().iterator();
+                while (iterator.hasNext()) {
+                    final StatementCache c = iterator.next();
+                    if (!c.db.isOpen()) {
+                        iterator.remove();
+                        if (closed == null) {
+                            closed = new ArrayList<StatementCache>();
+                        }
+                        closed.add(c);
+                    }
+                }
+                cache = new StatementCache(db, defaultMaxSize);
+                caches.put(db, cache);
+            }
+        }
+        if (closed != null) {
+            for (StatementCache c : closed) {
+                c.clear();
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Closes the cached statements of the database; call before closing it.
+     */
+    public static void close(SQLiteDatabase db) {
+        final StatementCache cache;
+        synchronized (caches) {
+            cache = caches.remove(db);
+        }
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Sets the size of caches created from now on; 0 turns caching off.
+     */
+    public static void setDefaultMaxSize(int size) {
+        defaultMaxSize = Math.max(0, size);
+    }
+
+    /**
+     * Replaces each run of whitespace and comments between tokens with one space, so
+     * formatting differences in otherwise identical SQL share one statement.  Quoted
+     * text is kept as written, and the result is still the same statement.
+     */
+    static String canonical(String sql) {
+        final SqlTokenizer tok = new SqlTokenizer(sql);
+        final StringBuilder sb = new StringBuilder(sql.length());
+        int last = 0;
+        while (tok.next() != SqlTokenizer.END) {
+            if (tok.start > last && sb.length() != 0) {
+                sb.append(' ');
+            }
+            sb.append(sql, tok.start, tok.end);
+            last = tok.end;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Checks out the statement for the canonical SQL, compiling it on a miss.
+     */
+    public SQLiteStatement acquire(String sql) {
+        return acquire(sql, sql);
+    }
+
+    /**
+     * Checks out the statement cached under key, the {@link #canonical(String)} form of
+     * sql, compiling sql itself as the caller wrote it on a miss.
+     */
+    public SQLiteStatement acquire(String key, String sql) {
+        synchronized (this) {
+            final SQLiteStatement stmt = statements.remove(key);
+            if (stmt != null) {
+                ++hits;
+                return stmt;
+            }
+            ++misses;
+        }
+        return db.compileStatement(sql);
+    }
+
+    /**
+     * Returns a statement checked out by {@link #acquire(String)} to the cache.
+     */
+    public void release(String sql, SQLiteStatement stmt) {
+        stmt.clearBindings();
+        SQLiteStatement evicted = stmt;
+        synchronized (this) {
+            if (maxSize > 0 && !statements.containsKey(sql)) {
+                statements.put(sql, stmt);
+                evicted = null;
+                if (statements.size() > maxSize) {
+                    final Iterator<SQLiteStatement> iterator = statements.values().iterator();
+                    evicted = iterator.next();
+                    iterator.remove();
+                    ++evictions;
+                }
+            }
+        }
+        if (evicted != null) {
+            evicted.close();
+        }
+    }
+
+    /**
+     * Closes a statement that failed instead of returning it to the cache.
+     */
+    public void discard(SQLiteStatement stmt) {
+        try {
+            stmt.close();
+        }
+        catch (Exception e) {
+            Logger.warn(StatementCache.class, "discard: ", e);
+        }
+    }
+
+    public void setMaxSize(int size) {
+        final List<SQLiteStatement> evicted = new ArrayList<SQLiteStatement>();
+        synchronized (this) {
+            maxSize = Math.max(0, size);
+            final Iterator<SQLiteStatement> iterator = statements.values().iterator();
+            while (statements.size() > maxSize && iterator.hasNext()) {
+                evicted.add(iterator.next());
+                iterator.remove();
+                ++evictions;
+            }
+        }
+        for (SQLiteStatement stmt : evicted) {
+            stmt.close();
+        }
+    }
+
+    public synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized int size() {
+        return statements.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized void resetStats() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    public void clear() {
+        final List<SQLiteStatement> closed;
+        synchronized (this) {
+            closed = new ArrayList<SQLiteStatement>(statements.values());
+            statements.clear();
+        }
+        for (SQLiteStatement stmt : closed) {
+            stmt.close();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "StatementCache{size = " + statements.size() + "/" + maxSize + ", hits = " + hits + ", misses = "
+            + misses + ", evictions = " + evictions + "}";
+    }
+}
@@ -0,0 +1,43 @@
+package com.bartonsoft.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class StatementCacheTest {
+    @Test
+    public void collapsesWhitespace() {
+        assertEquals("SELECT a FROM t WHERE b = ?", StatementCache.canonical("  SELECT a\n\tFROM  t\r\nWHERE b = ?  "));
+    }
+
+    @Test
+    public void keepsPunctuationAttached() {
+        assertEquals("SELECT t.a,count(*) FROM t", StatementCache.canonical("SELECT t.a,count(*)\nFROM t"));
+    }
+
+    @Test
+    public void dropsLineComments() {
+        // the comment must not swallow the rest of the statement
+        assertEquals("SELECT a FROM t", StatementCache.canonical("SELECT a -- note\nFROM t"));
+        assertEquals("SELECT a FROM t", StatementCache.canonical("SELECT a FROM t -- trailing"));
+    }
+
+    @Test
+    public void dropsBlockComments() {
+        assertEquals("SELECT a FROM t", StatementCache.canonical("SELECT a /* note\n */ FROM t"));
+        assertEquals("SELECT a FROM t", StatementCache.canonical("SELECT a/**/FROM t"));
+    }
+
+    @Test
+    public void keepsQuotedText() {
+        assertEquals("SELECT 'a  -- b\n' FROM \"my  table\" WHERE c = 'it''s  /* x */'",
+                StatementCache.canonical("SELECT 'a  -- b\n'\nFROM  \"my  table\"  WHERE c = 'it''s  /* x */'"));
+        assertEquals("SELECT [a  b], `c  d` FROM t", StatementCache.canonical("SELECT [a  b],  `c  d`  FROM t"));
+    }
+
+    @Test
+    public void sameStatementSameKey() {
+        assertEquals(StatementCache.canonical("SELECT a FROM t WHERE b = ?"),
+                StatementCache.canonical("SELECT a\n  FROM t -- by b\n  WHERE b = ?"));
+    }
+}